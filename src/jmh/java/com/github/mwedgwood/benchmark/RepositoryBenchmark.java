@@ -0,0 +1,122 @@
+package com.github.mwedgwood.benchmark;
+
+import com.github.mwedgwood.model.tree.Tree;
+import com.github.mwedgwood.repository.JdbcTreeRepositoryImpl;
+import com.github.mwedgwood.service.PersistenceServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * JdbcTreeRepositoryImpl against an in memory H2 database, through the pooled PersistenceServiceImpl.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djdbc-tree.inMemory=true")
+public class RepositoryBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Database {
+
+        @Param({"3", "5"})
+        public int depth;
+
+        @Param({"5", "10"})
+        public int fanOut;
+
+        DBI dbi;
+        JdbcTreeRepositoryImpl repository;
+        Tree tree;
+        Integer rootId;
+        Integer leafId;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            dbi = PersistenceServiceImpl.getInstance().getDbi();
+            tree = Trees.makeTree(depth, fanOut);
+            reset();
+        }
+
+        /*
+         * Recreates the table with just the benchmark tree in it. The repository is replaced too, as it caches the
+         * name of the id sequence, which H2 generates anew with the table.
+         */
+        void reset() {
+            dbi.withHandle(new HandleCallback<Object>() {
+                @Override
+                public Object withHandle(Handle handle) throws Exception {
+                    handle.execute("DROP TABLE IF EXISTS tree");
+                    handle.execute("CREATE TABLE tree (\n" +
+                            "\tid serial primary key,\n" +
+                            "\tdescription character varying(255),\n" +
+                            "\tname character varying(255) NOT NULL,\n" +
+                            "\tparent_id integer,\n" +
+                            "\tchildren_order integer)");
+                    handle.execute("CREATE INDEX tree_parent_id ON tree (parent_id, children_order, id)");
+                    return null;
+                }
+            });
+            repository = new JdbcTreeRepositoryImpl(dbi);
+            repository.save(tree);
+            rootId = tree.getId();
+            List<Tree> trees = tree.toList();
+            leafId = trees.get(trees.size() - 1).getId();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            PersistenceServiceImpl.getInstance().destroy();
+        }
+    }
+
+    /*
+     * Every save adds another copy of the tree, so the table is reset before each iteration.
+     */
+    @State(Scope.Benchmark)
+    public static class Saves {
+
+        @Setup(Level.Iteration)
+        public void setUp(Database database) {
+            database.reset();
+        }
+    }
+
+    @Benchmark
+    public Integer save(Database database, Saves saves) {
+        database.repository.save(database.tree);
+        return database.tree.getId();
+    }
+
+    @Benchmark
+    public Tree findEntireTree(Database database) {
+        return database.repository.findEntireTree(database.rootId);
+    }
+
+    @Benchmark
+    public Tree findByIdForDepth(Database database) {
+        return database.repository.findByIdForDepth(database.rootId, 2);
+    }
+
+    @Benchmark
+    public Tree findById(Database database) {
+        return database.repository.findById(database.leafId);
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.mwedgwood.benchmark;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import com.github.mwedgwood.util.JsonUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * In memory operations on a complete tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeBenchmark {
+
+    @Param({"3", "5"})
+    public int depth;
+
+    @Param({"5", "10"})
+    public int fanOut;
+
+    private Tree tree;
+    private List<Node> nodes;
+    private Integer lastId;
+
+    @Setup
+    public void setUp() {
+        tree = Trees.makeTree(depth, fanOut);
+        nodes = new ArrayList<>();
+        for (Tree subtree : tree.toList()) {
+            nodes.add(subtree.getNode());
+        }
+        lastId = nodes.get(nodes.size() - 1).getId();
+    }
+
+    @Benchmark
+    public Tree fromList() {
+        return Tree.fromList(nodes);
+    }
+
+    @Benchmark
+    public Tree findById() {
+        return tree.findById(lastId);
+    }
+
+    /*
+     * Levels are cached on the nodes, so the caches are dropped first to measure computing them.
+     */
+    @Benchmark
+    public void getLevel(Blackhole blackhole) {
+        tree.reindex();
+        for (Tree subtree : tree.toList()) {
+            blackhole.consume(subtree.getLevel());
+        }
+    }
+
+    @Benchmark
+    public List<Tree> toList() {
+        return tree.toList();
+    }
+
+    @Benchmark
+    public String toJson() throws IOException {
+        return JsonUtil.toJson(tree);
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.mwedgwood.benchmark;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+final class Trees {
+
+    private Trees() {
+    }
+
+    /*
+     * A complete tree of the given depth (the root alone is depth 1) where every inner node has fanOut children.
+     * Nodes are numbered from 1 in breadth first order, with their parent ids and orders filled in.
+     */
+    static Tree makeTree(int depth, int fanOut) {
+        int id = 1;
+        Tree root = Tree.createRoot("root", null, Node.class);
+        root.getNode().setId(id++).setOrder(0);
+
+        Deque<Tree> level = new ArrayDeque<>();
+        level.add(root);
+        for (int d = 1; d < depth; d++) {
+            Deque<Tree> next = new ArrayDeque<>();
+            for (Tree parent : level) {
+                for (int i = 0; i < fanOut; i++) {
+                    parent.addNode(new Node().setId(id).setName("node" + id).setParentId(parent.getId()).setOrder(i));
+                    id++;
+                }
+                next.addAll(parent.getChildren());
+            }
+            level = next;
+        }
+        return root;
+    }
+}
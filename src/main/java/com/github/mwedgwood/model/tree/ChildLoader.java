@@ -0,0 +1,15 @@
+package com.github.mwedgwood.model.tree;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Fetches children for a lazily loaded tree, see Tree.lazy().
+ */
+public interface ChildLoader {
+
+    /*
+     * The children of each of the parents, in order, keyed by parent id; parents without children may be left out.
+     */
+    Map<Integer, List<Node>> loadChildren(List<Integer> parentIds);
+}
@@ -0,0 +1,551 @@
+package com.github.mwedgwood.model.tree;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Immutable copy of a tree held in primitive arrays, for hierarchies too big to keep as Tree objects: a few ints a
+ * node instead of a Tree, a children list, a Node and their boxed Integers. Equal names and descriptions share one
+ * String.
+ *
+ * Nodes are addressed by their position in depth first order, the root being 0, so the descendants of a node are the
+ * positions following it up to subtreeEnd(). Lookups return positions, or -1 for none; getNode() and toTree() turn
+ * them back into objects.
+ *
+ * Copy a Tree with fromTree(), or add rows to a Builder to get one without creating the Tree first.
+ */
+public final class CompactTree {
+
+    private static final byte NODE = 0;
+    private static final byte COMPLEX_NODE = 1;
+
+    private final int size;
+    private final int[] parents;
+    private final int[] firstChildren;
+    private final int[] nextSiblings;
+
+    private final int[] ids;
+    private final int[] parentIds;
+    private final int[] orders;
+    // Set for the positions whose id, parentId or order is null
+    private final BitSet nullIds = new BitSet();
+    private final BitSet nullParentIds = new BitSet();
+    private final BitSet nullOrders = new BitSet();
+    private final String[] names;
+    private final String[] descriptions;
+
+    // Only allocated when there are ComplexNodes
+    private final byte[] types;
+    private final int[] clientIds;
+    private final BitSet nullClientIds = new BitSet();
+
+    // Sorted (id << 32 | position) pairs, built on the first findById
+    private volatile long[] idIndex;
+
+    /*
+     * Takes the columns of the rows, position i holding the row order[i], or row i when order is null.
+     */
+    private CompactTree(Builder rows, int[] order, int[] parents) {
+        size = parents.length;
+        this.parents = parents;
+        firstChildren = new int[size];
+        nextSiblings = new int[size];
+        ids = new int[size];
+        parentIds = new int[size];
+        orders = new int[size];
+        names = new String[size];
+        descriptions = new String[size];
+        types = rows.types != null ? new byte[size] : null;
+        clientIds = rows.types != null ? new int[size] : null;
+
+        Arrays.fill(firstChildren, -1);
+        Arrays.fill(nextSiblings, -1);
+        int[] lastChildren = new int[size];
+        for (int i = 0; i < size; i++) {
+            int parent = parents[i];
+            if (parent >= 0) {
+                if (firstChildren[parent] < 0) {
+                    firstChildren[parent] = i;
+                } else {
+                    nextSiblings[lastChildren[parent]] = i;
+                }
+                lastChildren[parent] = i;
+            }
+
+            int row = order == null ? i : order[i];
+            copy(rows.ids, rows.nullIds, row, ids, nullIds, i);
+            copy(rows.parentIds, rows.nullParentIds, row, parentIds, nullParentIds, i);
+            copy(rows.orders, rows.nullOrders, row, orders, nullOrders, i);
+            names[i] = rows.names[row];
+            descriptions[i] = rows.descriptions[row];
+            if (types != null) {
+                types[i] = rows.types[row];
+                copy(rows.clientIds, rows.nullClientIds, row, clientIds, nullClientIds, i);
+            }
+        }
+    }
+
+    /*
+     * Copies the subtree, keeping its children in their order; later changes to the tree are not reflected.
+     */
+    public static CompactTree fromTree(Tree root) {
+        Builder rows = new Builder();
+        int[] parents = new int[16];
+        Deque<Tree> stack = new ArrayDeque<>();
+        Deque<Integer> stackParents = new ArrayDeque<>();
+        stack.push(root);
+        stackParents.push(-1);
+        while (!stack.isEmpty()) {
+            Tree tree = stack.pop();
+            int position = rows.size;
+            if (position == parents.length) {
+                parents = Arrays.copyOf(parents, position * 2);
+            }
+            parents[position] = stackParents.pop();
+            rows.add(tree.getNode());
+            List<Tree> children = tree.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                stack.push(children.get(i));
+                stackParents.push(position);
+            }
+        }
+        return new CompactTree(rows, null, Arrays.copyOf(parents, rows.size));
+    }
+
+    public Tree toTree() {
+        return toTree(0);
+    }
+
+    /*
+     * The subtree below the position as new Tree and Node objects.
+     */
+    public Tree toTree(int position) {
+        int end = subtreeEnd(position);
+        Tree[] trees = new Tree[end - position];
+        for (int i = position; i < end; i++) {
+            Tree tree = new Tree(getNode(i));
+            if (i > position) {
+                Tree parent = trees[parents[i] - position];
+                parent.getChildren().add(tree.setParent(parent));
+            }
+            trees[i - position] = tree;
+        }
+        return trees[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getParent(int position) {
+        return parents[position];
+    }
+
+    public int getFirstChild(int position) {
+        return firstChildren[position];
+    }
+
+    public int getNextSibling(int position) {
+        return nextSiblings[position];
+    }
+
+    public int[] getChildren(int position) {
+        int count = 0;
+        for (int child = firstChildren[position]; child >= 0; child = nextSiblings[child]) {
+            count++;
+        }
+        int[] children = new int[count];
+        count = 0;
+        for (int child = firstChildren[position]; child >= 0; child = nextSiblings[child]) {
+            children[count++] = child;
+        }
+        return children;
+    }
+
+    /*
+     * The position following the last descendant of the node.
+     */
+    public int subtreeEnd(int position) {
+        for (int ancestor = position; ancestor >= 0; ancestor = parents[ancestor]) {
+            if (nextSiblings[ancestor] >= 0) {
+                return nextSiblings[ancestor];
+            }
+        }
+        return size;
+    }
+
+    public Integer getId(int position) {
+        return get(ids, nullIds, position);
+    }
+
+    public Integer getParentId(int position) {
+        return get(parentIds, nullParentIds, position);
+    }
+
+    public Integer getOrder(int position) {
+        return get(orders, nullOrders, position);
+    }
+
+    public String getName(int position) {
+        return names[position];
+    }
+
+    public String getDescription(int position) {
+        return descriptions[position];
+    }
+
+    public Class<? extends Node> getType(int position) {
+        return types != null && types[position] == COMPLEX_NODE ? ComplexNode.class : Node.class;
+    }
+
+    /*
+     * A new Node, or ComplexNode, with the values stored at the position.
+     */
+    public Node getNode(int position) {
+        Node node;
+        if (getType(position) == ComplexNode.class) {
+            ComplexNode complexNode = new ComplexNode();
+            complexNode.setClientId(get(clientIds, nullClientIds, position));
+            node = complexNode;
+        } else {
+            node = new Node();
+        }
+        return node.setId(getId(position))
+                .setParentId(getParentId(position))
+                .setOrder(getOrder(position))
+                .setName(names[position])
+                .setDescription(descriptions[position]);
+    }
+
+    public int getDepth(int position) {
+        int depth = 0;
+        for (int parent = parents[position]; parent >= 0; parent = parents[parent]) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /*
+     * The names from the root down to the node, separated by dots, as Tree.createPath() gives them.
+     */
+    public String createPath(int position) {
+        Deque<String> path = new ArrayDeque<>();
+        for (int ancestor = position; ancestor >= 0; ancestor = parents[ancestor]) {
+            path.push(names[ancestor]);
+        }
+        StringBuilder builder = new StringBuilder();
+        for (String name : path) {
+            if (builder.length() > 0) {
+                builder.append('.');
+            }
+            builder.append(name);
+        }
+        return builder.toString();
+    }
+
+    /*
+     * The first position, in depth first order, of a node with the id, or -1.
+     */
+    public int findById(Integer id) {
+        if (id == null) {
+            return -1;
+        }
+        long[] index = idIndex();
+        int low = 0;
+        int high = index.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if ((int) (index[middle] >> 32) < id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low < index.length && (int) (index[low] >> 32) == id ? (int) index[low] : -1;
+    }
+
+    private long[] idIndex() {
+        long[] index = idIndex;
+        if (index == null) {
+            index = new long[size - nullIds.cardinality()];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (!nullIds.get(i)) {
+                    index[count++] = (long) ids[i] << 32 | i;
+                }
+            }
+            Arrays.sort(index);
+            idIndex = index;
+        }
+        return index;
+    }
+
+    public int[] findLeaves() {
+        return findLeaves(0);
+    }
+
+    public int[] findLeaves(int position) {
+        int end = subtreeEnd(position);
+        int count = 0;
+        int[] leaves = new int[end - position];
+        for (int i = position; i < end; i++) {
+            if (firstChildren[i] < 0) {
+                leaves[count++] = i;
+            }
+        }
+        return Arrays.copyOf(leaves, count);
+    }
+
+    public int[] findNodesOfType(Class<? extends Node> type) {
+        return findNodesOfType(type, 0);
+    }
+
+    /*
+     * The positions in the subtree whose node is exactly of the type, in depth first order.
+     */
+    public int[] findNodesOfType(Class<? extends Node> type, int position) {
+        int end = subtreeEnd(position);
+        int count = 0;
+        int[] found = new int[end - position];
+        for (int i = position; i < end; i++) {
+            if (getType(i) == type) {
+                found[count++] = i;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private static void copy(int[] from, BitSet fromNulls, int row, int[] to, BitSet toNulls, int position) {
+        if (fromNulls.get(row)) {
+            toNulls.set(position);
+        } else {
+            to[position] = from[row];
+        }
+    }
+
+    private static void set(int[] values, BitSet nulls, int position, Integer value) {
+        if (value == null) {
+            nulls.set(position);
+        } else {
+            values[position] = value;
+        }
+    }
+
+    private static Integer get(int[] values, BitSet nulls, int position) {
+        return nulls.get(position) ? null : values[position];
+    }
+
+    private static String intern(Map<String, String> strings, String string) {
+        if (string == null) {
+            return null;
+        }
+        String interned = strings.get(string);
+        if (interned == null) {
+            strings.put(string, string);
+            return string;
+        }
+        return interned;
+    }
+
+    private static byte type(Node node) {
+        if (node.getClass() == Node.class) {
+            return NODE;
+        }
+        if (node.getClass() == ComplexNode.class) {
+            return COMPLEX_NODE;
+        }
+        throw new IllegalArgumentException("Can not store nodes of type " + node.getClass().getName());
+    }
+
+    /*
+     * Assembles a CompactTree from rows, as TreeBuilder does a Tree, without creating a Tree along the way: each row
+     * is copied into primitive arrays as it is added. Rows may arrive in any order; build() links them by parent id
+     * and sorts every parent's children by their order, then id, nulls last.
+     */
+    public static final class Builder {
+
+        private int size;
+        private int[] ids;
+        private int[] parentIds;
+        private int[] orders;
+        private final BitSet nullIds = new BitSet();
+        private final BitSet nullParentIds = new BitSet();
+        private final BitSet nullOrders = new BitSet();
+        private String[] names;
+        private String[] descriptions;
+        private final Map<String, String> strings = new HashMap<>();
+
+        // Only allocated once a ComplexNode is added
+        private byte[] types;
+        private int[] clientIds;
+        private final BitSet nullClientIds = new BitSet();
+
+        public Builder() {
+            this(16);
+        }
+
+        public Builder(int expectedSize) {
+            int capacity = Math.max(expectedSize, 1);
+            ids = new int[capacity];
+            parentIds = new int[capacity];
+            orders = new int[capacity];
+            names = new String[capacity];
+            descriptions = new String[capacity];
+        }
+
+        public Builder add(Node node) {
+            byte type = type(node);
+            if (size == ids.length) {
+                grow(size * 2);
+            }
+            if (type == COMPLEX_NODE && types == null) {
+                types = new byte[ids.length];
+                clientIds = new int[ids.length];
+            }
+
+            set(ids, nullIds, size, node.getId());
+            set(parentIds, nullParentIds, size, node.getParentId());
+            set(orders, nullOrders, size, node.getOrder());
+            names[size] = intern(strings, node.getName());
+            descriptions[size] = intern(strings, node.getDescription());
+            if (types != null) {
+                types[size] = type;
+                if (type == COMPLEX_NODE) {
+                    set(clientIds, nullClientIds, size, ((ComplexNode) node).getClientId());
+                }
+            }
+            size++;
+            return this;
+        }
+
+        /*
+         * Returns the tree below the row without a parent id, or, when the rows describe a subtree, below the topmost
+         * ancestor of the first row added; null when there were no rows. Rows whose parent never arrived are left out.
+         */
+        public CompactTree build() {
+            if (size == 0) {
+                return null;
+            }
+
+            IntObjectMap<Integer> rows = new IntObjectMap<>(size);
+            for (int row = 0; row < size; row++) {
+                if (!nullIds.get(row)) {
+                    rows.put(ids[row], row);
+                }
+            }
+            int[] parentRows = new int[size];
+            int root = -1;
+            for (int row = 0; row < size; row++) {
+                Integer parent = hasParent(row) ? rows.get(parentIds[row]) : null;
+                parentRows[row] = parent == null ? -1 : parent;
+                if (root < 0 && !hasParent(row)) {
+                    root = row;
+                }
+            }
+            if (root < 0) {
+                root = 0;
+                // Bounded by the number of rows, in case the parent ids go round in a cycle
+                for (int steps = 0; parentRows[root] >= 0 && steps < size; steps++) {
+                    root = parentRows[root];
+                }
+            }
+
+            // The children of row r are children[childStarts[r]] up to children[childStarts[r + 1]]
+            int[] childStarts = new int[size + 1];
+            for (int row = 0; row < size; row++) {
+                if (parentRows[row] >= 0) {
+                    childStarts[parentRows[row] + 1]++;
+                }
+            }
+            for (int row = 0; row < size; row++) {
+                childStarts[row + 1] += childStarts[row];
+            }
+            int[] children = new int[childStarts[size]];
+            int[] filled = Arrays.copyOf(childStarts, size);
+            for (int row = 0; row < size; row++) {
+                if (parentRows[row] >= 0) {
+                    children[filled[parentRows[row]]++] = row;
+                }
+            }
+            for (int row = 0; row < size; row++) {
+                sortChildren(children, childStarts[row], childStarts[row + 1]);
+            }
+
+            int[] order = new int[size];
+            int[] parents = new int[size];
+            int[] stack = new int[size];
+            int[] stackParents = new int[size];
+            int count = 0;
+            int depth = 0;
+            stack[depth] = root;
+            stackParents[depth++] = -1;
+            while (depth > 0 && count < size) {
+                int row = stack[--depth];
+                order[count] = row;
+                parents[count] = stackParents[depth];
+                for (int i = childStarts[row + 1] - 1; i >= childStarts[row] && depth < size; i--) {
+                    stack[depth] = children[i];
+                    stackParents[depth++] = count;
+                }
+                count++;
+            }
+            return new CompactTree(this, Arrays.copyOf(order, count), Arrays.copyOf(parents, count));
+        }
+
+        private boolean hasParent(int row) {
+            return !nullParentIds.get(row) && parentIds[row] != 0;
+        }
+
+        private void sortChildren(int[] children, int from, int to) {
+            for (int i = from + 1; i < to; i++) {
+                if (compare(children[i - 1], children[i]) > 0) {
+                    Integer[] sorted = new Integer[to - from];
+                    for (int j = from; j < to; j++) {
+                        sorted[j - from] = children[j];
+                    }
+                    Arrays.sort(sorted, new Comparator<Integer>() {
+                        @Override
+                        public int compare(Integer a, Integer b) {
+                            return Builder.this.compare(a, b);
+                        }
+                    });
+                    for (int j = from; j < to; j++) {
+                        children[j] = sorted[j - from];
+                    }
+                    return;
+                }
+            }
+        }
+
+        // By order, then by id, nulls last, as TreeBuilder sorts children
+        private int compare(int a, int b) {
+            int order = compareNullsLast(orders, nullOrders, a, b);
+            return order != 0 ? order : compareNullsLast(ids, nullIds, a, b);
+        }
+
+        private static int compareNullsLast(int[] values, BitSet nulls, int a, int b) {
+            if (nulls.get(a) || nulls.get(b)) {
+                return nulls.get(a) ? (nulls.get(b) ? 0 : 1) : -1;
+            }
+            return Integer.compare(values[a], values[b]);
+        }
+
+        private void grow(int capacity) {
+            ids = Arrays.copyOf(ids, capacity);
+            parentIds = Arrays.copyOf(parentIds, capacity);
+            orders = Arrays.copyOf(orders, capacity);
+            names = Arrays.copyOf(names, capacity);
+            descriptions = Arrays.copyOf(descriptions, capacity);
+            if (types != null) {
+                types = Arrays.copyOf(types, capacity);
+                clientIds = Arrays.copyOf(clientIds, capacity);
+            }
+        }
+    }
+}
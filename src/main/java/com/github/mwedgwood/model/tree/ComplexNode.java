@@ -11,4 +11,10 @@ public class ComplexNode extends Node {
     public void setClientId(Integer clientId) {
         this.clientId = clientId;
     }
+
+    @Override
+    protected Node copyTo(Node copy) {
+        ((ComplexNode) copy).setClientId(clientId);
+        return super.copyTo(copy);
+    }
 }
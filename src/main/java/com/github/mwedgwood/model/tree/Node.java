@@ -62,6 +62,24 @@ public class Node {
         return this;
     }
 
+    public Node copy() {
+        Node copy;
+        try {
+            copy = getClass().newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        return copyTo(copy);
+    }
+
+    protected Node copyTo(Node copy) {
+        return copy.setId(id)
+                .setParentId(parentId)
+                .setOrder(order)
+                .setName(name)
+                .setDescription(description);
+    }
+
     @Override
     public String toString() {
         return "Node{" +
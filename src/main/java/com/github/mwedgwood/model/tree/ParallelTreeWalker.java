@@ -0,0 +1,245 @@
+package com.github.mwedgwood.model.tree;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Searches and aggregates over big trees on a ForkJoinPool. A task covers a run of siblings with their subtrees: it
+ * walks up to threshold nodes of them itself, depth first, then carries on with the first run left over, halved when
+ * it holds several siblings, and forks tasks for the other runs. Every node is visited once, and deep chains are
+ * followed in a loop rather than by nested tasks.
+ *
+ * Results come out in depth first order, as the sequential methods of Tree give them. The predicates and functions are
+ * called from several threads at once and must not change the tree.
+ */
+public class ParallelTreeWalker {
+
+    public static final int DEFAULT_THRESHOLD = 4096;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    public ParallelTreeWalker() {
+        this(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    public ParallelTreeWalker(ForkJoinPool pool, int threshold) {
+        if (threshold < 1) throw new IllegalArgumentException("threshold must be positive");
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    public interface Combiner<T> {
+
+        T combine(T left, T right);
+    }
+
+    /*
+     * The first matching node in depth first order, or null.
+     */
+    public Tree find(Tree tree, final Predicate<? super Tree> predicate) {
+        return walk(tree, new Aggregation<Tree>() {
+            @Override
+            Tree empty() {
+                return null;
+            }
+
+            @Override
+            Tree visit(Tree result, Tree tree) {
+                return predicate.apply(tree) ? tree : null;
+            }
+
+            @Override
+            boolean isComplete(Tree result) {
+                return result != null;
+            }
+
+            @Override
+            Tree combine(Tree left, Tree right) {
+                return left != null ? left : right;
+            }
+        });
+    }
+
+    public List<Tree> filter(Tree tree, final Predicate<? super Tree> predicate) {
+        return walk(tree, new Aggregation<List<Tree>>() {
+            @Override
+            List<Tree> empty() {
+                return new ArrayList<>();
+            }
+
+            @Override
+            List<Tree> visit(List<Tree> result, Tree tree) {
+                if (predicate.apply(tree)) {
+                    result.add(tree);
+                }
+                return result;
+            }
+
+            @Override
+            List<Tree> combine(List<Tree> left, List<Tree> right) {
+                left.addAll(right);
+                return left;
+            }
+        });
+    }
+
+    public int count(Tree tree, final Predicate<? super Tree> predicate) {
+        return walk(tree, new Aggregation<Integer>() {
+            @Override
+            Integer empty() {
+                return 0;
+            }
+
+            @Override
+            Integer visit(Integer result, Tree tree) {
+                return predicate.apply(tree) ? result + 1 : result;
+            }
+
+            @Override
+            Integer combine(Integer left, Integer right) {
+                return left + right;
+            }
+        });
+    }
+
+    /*
+     * Combines the values of all nodes, starting from identity. The combiner must be associative, and identity
+     * neutral to it, as values are combined in depth first order but grouped differently from run to run.
+     */
+    public <T> T reduce(Tree tree, final T identity, final Function<? super Tree, ? extends T> mapper, final Combiner<T> combiner) {
+        return walk(tree, new Aggregation<T>() {
+            @Override
+            T empty() {
+                return identity;
+            }
+
+            @Override
+            T visit(T result, Tree tree) {
+                return combiner.combine(result, mapper.apply(tree));
+            }
+
+            @Override
+            T combine(T left, T right) {
+                return combiner.combine(left, right);
+            }
+        });
+    }
+
+    public List<Tree> findLeaves(Tree tree) {
+        return filter(tree, new Predicate<Tree>() {
+            @Override
+            public boolean apply(Tree tree) {
+                return !tree.hasChildren();
+            }
+        });
+    }
+
+    public <T extends Node> List<Tree> findNodesOfType(Tree tree, final Class<T> type) {
+        return filter(tree, new Predicate<Tree>() {
+            @Override
+            public boolean apply(Tree tree) {
+                return tree.getNode().getClass().equals(type);
+            }
+        });
+    }
+
+    private <R> R walk(Tree tree, Aggregation<R> aggregation) {
+        return pool.invoke(new WalkTask<>(aggregation, new Run(Collections.singletonList(tree), 0, 1), threshold));
+    }
+
+    private abstract static class Aggregation<R> {
+
+        abstract R empty();
+
+        abstract R visit(R result, Tree tree);
+
+        abstract R combine(R left, R right);
+
+        boolean isComplete(R result) {
+            return false;
+        }
+    }
+
+    private static final class WalkTask<R> extends RecursiveTask<R> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Aggregation<R> aggregation;
+        private final Run start;
+        private final int threshold;
+
+        private WalkTask(Aggregation<R> aggregation, Run start, int threshold) {
+            this.aggregation = aggregation;
+            this.start = start;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected R compute() {
+            R result = aggregation.empty();
+            // The runs handed to other tasks, in depth first order
+            Deque<WalkTask<R>> forked = new ArrayDeque<>();
+            Deque<Run> stack = new ArrayDeque<>();
+            Run next = start;
+            while (next != null && !aggregation.isComplete(result)) {
+                stack.push(next);
+                for (int visited = 0; visited < threshold && !stack.isEmpty() && !aggregation.isComplete(result); visited++) {
+                    Run run = stack.pop();
+                    Tree tree = run.siblings.get(run.from);
+                    if (run.from + 1 < run.to) {
+                        stack.push(new Run(run.siblings, run.from + 1, run.to));
+                    }
+                    List<Tree> children = tree.getChildren();
+                    if (!children.isEmpty()) {
+                        stack.push(new Run(children, 0, children.size()));
+                    }
+                    result = aggregation.visit(result, tree);
+                }
+
+                next = stack.poll();
+                if (next != null && next.to - next.from > 1) {
+                    int middle = (next.from + next.to) >>> 1;
+                    stack.push(new Run(next.siblings, middle, next.to));
+                    next = new Run(next.siblings, next.from, middle);
+                }
+                // What is left comes before the runs forked earlier, so it is added to the front, the last run first
+                while (!stack.isEmpty()) {
+                    WalkTask<R> task = new WalkTask<>(aggregation, stack.pollLast(), threshold);
+                    task.fork();
+                    forked.addFirst(task);
+                }
+            }
+
+            for (WalkTask<R> task : forked) {
+                if (aggregation.isComplete(result)) {
+                    task.cancel(false);
+                } else {
+                    result = aggregation.combine(result, task.join());
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Run {
+
+        private final List<Tree> siblings;
+        private final int from;
+        private final int to;
+
+        private Run(List<Tree> siblings, int from, int to) {
+            this.siblings = siblings;
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
@@ -2,12 +2,13 @@ package com.github.mwedgwood.model.tree;
 
 
 import com.fasterxml.jackson.annotation.JsonBackReference;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonManagedReference;
-import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
-import org.apache.commons.lang3.StringUtils;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.stream.Stream;
 
 public class Tree {
 
@@ -23,6 +24,18 @@ public class Tree {
 
     private Node node;
 
+    // Set while the children of a lazily loaded node haven't been fetched yet
+    private Loading loading;
+
+    // Only set on the root of a tree once findById has been called on it, and then kept up to date by the mutators
+    private IntObjectMap<Tree> index;
+    private boolean indexed;
+
+    // Computed on demand and cleared for the affected subtrees by the mutators
+    private String cachedLevel;
+    private String cachedPath;
+    private int cachedDepth = -1;
+
     public static <T extends Node> Tree createRoot(String name, String description, Class<T> type) {
         T root;
         try {
@@ -36,25 +49,25 @@ public class Tree {
     }
 
     public static Tree fromList(List<Node> nodes) {
-        Map<Integer, Tree> parents = new LinkedHashMap<>();
-        Tree root = null;
-
+        TreeBuilder builder = new TreeBuilder(nodes.size());
         for (Node node : nodes) {
-            Integer parentId = node.getParentId();
-            Tree tree = new Tree(node);
-
-            if (parentId == null || parentId == 0) {
-                root = tree;
-            }
-
-            Tree parent = parents.get(parentId);
-            if (parent != null) {
-                parent.addChild(tree);
-            }
-
-            parents.put(node.getId(), tree);
+            builder.add(node);
         }
-        return root == null && !parents.isEmpty() ? parents.values().iterator().next() : root;
+        return builder.build();
+    }
+
+    /*
+     * A tree whose children are fetched from the loader the first time they are asked for, by getChildren() or
+     * anything walking the tree. The unloaded siblings of that node are fetched along with it, prefetchDepth levels
+     * deep, so expanding the nodes of a level one after the other costs a single round trip per prefetchDepth levels.
+     *
+     * Lookups by id (findById) and copy() only see what has been loaded so far.
+     */
+    public static Tree lazy(Node node, ChildLoader loader, int prefetchDepth) {
+        if (prefetchDepth < 1) throw new IllegalArgumentException("prefetchDepth must be positive");
+        Tree tree = new Tree(node);
+        tree.loading = new Loading(loader, prefetchDepth);
+        return tree;
     }
 
     private Tree() {
@@ -74,25 +87,57 @@ public class Tree {
     }
 
     public List<Tree> getChildren() {
+        load();
         return children;
     }
 
+    @JsonIgnore
+    public boolean isLoaded() {
+        return loading == null;
+    }
+
+    private void load() {
+        if (loading == null) {
+            return;
+        }
+        List<Tree> batch = new ArrayList<>();
+        if (parent == null) {
+            batch.add(this);
+        } else {
+            for (Tree sibling : parent.children) {
+                if (sibling.loading == loading) {
+                    batch.add(sibling);
+                }
+            }
+        }
+        loading.load(batch);
+    }
+
     Tree setChildren(List<Tree> children) {
         this.children = children;
         return this;
     }
 
     public Tree addChild(Tree tree) {
+        load();
         this.children.add(tree);
         tree.setParent(this);
+        clearCaches(tree, true);
+        attached(tree);
         return this;
     }
 
     public Tree addChild(Tree tree, int order) {
-        // Remove the child if it already exists
-        if (children.indexOf(tree) >= 0) {
-            children.remove(tree);
+        if (!insertChild(tree, order)) {
+            attached(tree);
         }
+        return this;
+    }
+
+    private boolean insertChild(Tree tree, int order) {
+        load();
+        // Remove the child if it already exists
+        boolean existing = unlink(tree) >= 0;
 
         // Update the 'order' properties of any children
         for (Tree child : children) {
@@ -104,11 +149,27 @@ public class Tree {
 
         tree.getNode().setOrder(order);
         this.children.add(order, tree);
-        return this;
+        tree.setParent(this);
+
+        clearLevels(order);
+        if (!existing) {
+            clearCaches(tree, true);
+        }
+        return existing;
+    }
+
+    private int unlink(Tree tree) {
+        load();
+        int index = children.indexOf(tree);
+        if (index >= 0) {
+            children.remove(index);
+            clearLevels(index);
+        }
+        return index;
     }
 
     public boolean hasChildren() {
-        return !children.isEmpty();
+        return !getChildren().isEmpty();
     }
 
     public Node getNode() {
@@ -121,37 +182,121 @@ public class Tree {
     }
 
     public Tree addNode(Node node) {
-        children.add(new Tree().setNode(node).setParent(this));
+        load();
+        Tree tree = new Tree().setNode(node).setParent(this);
+        children.add(tree);
+        attached(tree);
         return this;
     }
 
     public Tree removeTree(Tree tree) {
-        children.remove(tree);
+        if (unlink(tree) >= 0) {
+            detached(tree);
+            tree.setParent(null);
+            clearCaches(tree, true);
+        }
         return this;
     }
 
     public String createPath() {
-        List<String> parts = new ArrayList<>(Arrays.asList(node.getName()));
-        for (Tree root = this.getParent(); root != null; root = root.getParent()) {
-            parts.add(root.getNode().getName());
+        if (cachedPath == null) {
+            Deque<Tree> uncached = new ArrayDeque<>();
+            Tree tree = this;
+            for (; tree.cachedPath == null && tree.parent != null; tree = tree.parent) {
+                uncached.push(tree);
+            }
+            if (tree.cachedPath == null) {
+                tree.cachedPath = tree.node.getName();
+            }
+            while (!uncached.isEmpty()) {
+                tree = uncached.pop();
+                tree.cachedPath = tree.parent.cachedPath + "." + tree.node.getName();
+            }
         }
-        return Joiner.on(".").join(Lists.reverse(parts));
+        return cachedPath;
     }
 
-    private int siblingIndex() {
-        if (parent == null) {
-            return 0;
+    public String getLevel() {
+        if (cachedLevel == null) {
+            Deque<Tree> uncached = new ArrayDeque<>();
+            Tree tree = this;
+            for (; tree.cachedLevel == null && tree.parent != null; tree = tree.parent) {
+                uncached.push(tree);
+            }
+            if (tree.cachedLevel == null) {
+                tree.cachedLevel = "";
+            }
+            while (!uncached.isEmpty()) {
+                uncached.pop().parent.cacheChildLevels();
+            }
         }
-
-        return parent.getChildren().indexOf(this) + 1;
+        return cachedLevel;
     }
 
-    public String getLevel() {
-        return parent == null ? "" : (Joiner.on(".").skipNulls().join(StringUtils.stripToNull(parent.getLevel()), siblingIndex()));
+    // Numbering all siblings at once avoids an indexOf per child
+    private void cacheChildLevels() {
+        String prefix = cachedLevel.isEmpty() ? "" : cachedLevel + ".";
+        for (int i = 0; i < children.size(); i++) {
+            Tree child = children.get(i);
+            if (child.cachedLevel == null) {
+                child.cachedLevel = prefix + (i + 1);
+            }
+        }
     }
 
     public Integer getDepth() {
-        return parent == null || !parent.getClass().equals(this.getClass()) ? 0 : (parent.getDepth() + 1);
+        if (cachedDepth < 0) {
+            Deque<Tree> uncached = new ArrayDeque<>();
+            Tree tree = this;
+            for (; tree.cachedDepth < 0 && tree.parent != null && tree.parent.getClass().equals(tree.getClass()); tree = tree.parent) {
+                uncached.push(tree);
+            }
+            if (tree.cachedDepth < 0) {
+                tree.cachedDepth = 0;
+            }
+            while (!uncached.isEmpty()) {
+                tree = uncached.pop();
+                tree.cachedDepth = tree.parent.cachedDepth + 1;
+            }
+        }
+        return cachedDepth;
+    }
+
+    private void clearLevels(int fromIndex) {
+        for (int i = fromIndex; i < children.size(); i++) {
+            clearCaches(children.get(i), false);
+        }
+    }
+
+    /*
+     * A value is only ever cached after it has been cached for all ancestors, so the walk can stop at the first node
+     * that has nothing to clear.
+     */
+    private static void clearCaches(Tree tree, boolean all) {
+        if (!hasCaches(tree, all)) {
+            // The usual case when attaching new trees, as while assembling query results
+            return;
+        }
+        Deque<Tree> stack = new ArrayDeque<>();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            Tree current = stack.pop();
+            if (!hasCaches(current, all)) {
+                continue;
+            }
+            current.cachedLevel = null;
+            if (all) {
+                current.cachedPath = null;
+                current.cachedDepth = -1;
+            }
+            for (Tree child : current.children) {
+                stack.push(child);
+            }
+        }
+    }
+
+    private static boolean hasCaches(Tree tree, boolean all) {
+        return tree.cachedLevel != null || (all && (tree.cachedPath != null || tree.cachedDepth >= 0));
     }
 
     @Override
@@ -160,16 +305,60 @@ public class Tree {
     }
 
     public String prettyPrint() {
-        return prettyPrint(this, "", true).trim();
+        StringBuilder stringBuilder = new StringBuilder();
+        try {
+            prettyPrint(stringBuilder);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return stringBuilder.toString().trim();
     }
 
-    private String prettyPrint(Tree tree, String prefix, boolean isTail) {
-        StringBuilder stringBuilder = new StringBuilder(prefix).append((isTail ? "└── " : "├── ")).append(tree.node.getName()).append("\n");
+    /*
+     * Writes one line per node as it goes, keeping a single prefix that grows and shrinks with the depth.
+     */
+    public void prettyPrint(Appendable out) throws IOException {
+        StringBuilder prefix = new StringBuilder();
+        Deque<Iterator<Tree>> siblings = new ArrayDeque<>();
+        out.append("└── ").append(node.getName()).append("\n");
+        prefix.append("    ");
+        siblings.push(getChildren().iterator());
+        while (!siblings.isEmpty()) {
+            Iterator<Tree> iterator = siblings.peek();
+            if (!iterator.hasNext()) {
+                siblings.pop();
+                prefix.setLength(prefix.length() - 4);
+                continue;
+            }
+            Tree tree = iterator.next();
+            boolean isTail = !iterator.hasNext();
+            out.append(prefix).append(isTail ? "└── " : "├── ").append(tree.node.getName()).append("\n");
+            prefix.append(isTail ? "    " : "│   ");
+            siblings.push(tree.getChildren().iterator());
+        }
+    }
 
-        for (Iterator<Tree> iterator = tree.children.iterator(); iterator.hasNext(); ) {
-            stringBuilder.append(prettyPrint(iterator.next(), prefix + (isTail ? "    " : "│   "), !iterator.hasNext()));
+    /*
+     * Copies the subtree, including its nodes, without any of the caches or the id index.
+     */
+    public Tree copy() {
+        Tree copy = new Tree(node.copy());
+
+        Deque<Tree> originals = new ArrayDeque<>();
+        Deque<Tree> copies = new ArrayDeque<>();
+        originals.push(this);
+        copies.push(copy);
+        while (!originals.isEmpty()) {
+            Tree original = originals.pop();
+            Tree parent = copies.pop();
+            for (Tree child : original.children) {
+                Tree childCopy = new Tree(child.node.copy()).setParent(parent);
+                parent.children.add(childCopy);
+                originals.push(child);
+                copies.push(childCopy);
+            }
         }
-        return stringBuilder.toString();
+        return copy;
     }
 
     public List<Tree> toList() {
@@ -177,13 +366,45 @@ public class Tree {
     }
 
     List<Tree> toList(Tree tree, List<Tree> allNodes) {
-        allNodes.add(tree);
-        for (Tree child : tree.getChildren()) {
-            toList(child, allNodes);
+        for (Tree current : TreeTraversal.preOrder(tree)) {
+            allNodes.add(current);
         }
         return allNodes;
     }
 
+    /*
+     * The subtree in depth first order, parents before their children, computed as the iteration goes.
+     */
+    public Iterable<Tree> preOrder() {
+        return TreeTraversal.preOrder(this);
+    }
+
+    /*
+     * The subtree in depth first order, children before their parents, computed as the iteration goes.
+     */
+    public Iterable<Tree> postOrder() {
+        return TreeTraversal.postOrder(this);
+    }
+
+    /*
+     * The subtree level by level, computed as the iteration goes.
+     */
+    public Iterable<Tree> breadthFirst() {
+        return TreeTraversal.breadthFirst(this);
+    }
+
+    public Stream<Tree> preOrderStream() {
+        return TreeTraversal.stream(preOrder());
+    }
+
+    public Stream<Tree> postOrderStream() {
+        return TreeTraversal.stream(postOrder());
+    }
+
+    public Stream<Tree> breadthFirstStream() {
+        return TreeTraversal.stream(breadthFirst());
+    }
+
     /*
      * NOTE: this will find the first leftmost element with the specified name if there are multiple elements with the same name.
      */
@@ -192,39 +413,129 @@ public class Tree {
     }
 
     Tree findTree(Tree currentNode, String elementName) {
-        if (currentNode.getNode().getName().equals(elementName)) {
-            return currentNode;
-        }
-        for (Tree child : currentNode.children) {
-            Tree subtree = findTree(child, elementName);
-            if (subtree != null) {
-                return subtree;
+        for (Tree tree : TreeTraversal.preOrder(currentNode)) {
+            if (tree.getNode().getName().equals(elementName)) {
+                return tree;
             }
         }
         return null;
     }
 
+    /*
+     * Looks the id up in the index kept on the root, which the mutators and changeId() keep up to date. Ids changed on
+     * the nodes directly, as saving a tree does, are only picked up after a reindex().
+     */
     public Tree findById(Integer id) {
-        return id != null ? findById(this, id) : null;
+        if (id == null) {
+            return null;
+        }
+        Tree tree = findRoot().index().get(id);
+        return tree != null && tree.isDescendantOf(this) ? tree : null;
+    }
+
+    /*
+     * Sets the id of the node, moving its entry in the id index of the tree along with it.
+     */
+    public Tree changeId(Integer id) {
+        IntObjectMap<Tree> index = indexed ? findRoot().index : null;
+        if (index != null && getId() != null && index.get(getId()) == this) {
+            index.remove(getId());
+        }
+        node.setId(id);
+        if (index != null && id != null) {
+            index.put(id, this);
+        }
+        return this;
     }
 
-    private Tree findById(Tree currentNode, Integer id) {
-        if (currentNode.getId().equals(id)) {
-            return currentNode;
+    /*
+     * Drops the id index and the cached levels, paths and depths, which are rebuilt on demand. Call this after changing
+     * the names of nodes that are already part of a tree, or after changing a children list directly.
+     */
+    public Tree reindex() {
+        Tree root = findRoot();
+        if (root.index != null) {
+            root.index = null;
+            unindex(root, null);
         }
-        for (Tree child : currentNode.children) {
-            Tree node = findById(child, id);
-            if (node != null) {
-                return node;
+        clearCaches(root, true);
+        return this;
+    }
+
+    public boolean isDescendantOf(Tree ancestor) {
+        for (Tree tree = this; tree != null; tree = tree.getParent()) {
+            if (tree == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private IntObjectMap<Tree> index() {
+        if (index == null) {
+            index = new IntObjectMap<>();
+            index(this, index);
+        }
+        return index;
+    }
+
+    private void attached(Tree tree) {
+        tree.index = null;
+        if (indexed) {
+            index(tree, findRoot().index);
+        } else if (tree.indexed) {
+            unindex(tree, null);
+        }
+    }
+
+    private void detached(Tree tree) {
+        if (tree.indexed) {
+            unindex(tree, findRoot().index);
+        }
+    }
+
+    private static void index(Tree tree, IntObjectMap<Tree> index) {
+        Deque<Tree> stack = new ArrayDeque<>();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            Tree current = stack.pop();
+            current.indexed = true;
+            if (current.getId() != null) {
+                index.put(current.getId(), current);
+            }
+            for (Tree child : current.children) {
+                stack.push(child);
+            }
+        }
+    }
+
+    private static void unindex(Tree tree, IntObjectMap<Tree> index) {
+        Deque<Tree> stack = new ArrayDeque<>();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            Tree current = stack.pop();
+            current.indexed = false;
+            if (index != null && current.getId() != null && index.get(current.getId()) == current) {
+                index.remove(current.getId());
+            }
+            for (Tree child : current.children) {
+                stack.push(child);
             }
         }
-        return null;
     }
 
     public void move(final Tree newParent, int order) {
         if (newParent == null) throw new AssertionError("newParent can not be null");
+        if (newParent.isDescendantOf(this)) throw new AssertionError("newParent can not be a descendant of the moved tree");
 
-        this.getParent().getChildren().remove(this);
+        if (newParent.findRoot() == findRoot()) {
+            // Same tree, so the index entries stay valid
+            this.getParent().unlink(this);
+            newParent.insertChild(this, order);
+            return;
+        }
+
+        this.getParent().removeTree(this);
         newParent.addChild(this, order);
     }
 
@@ -241,11 +552,10 @@ public class Tree {
     }
 
     List<Tree> findLeaves(Tree tree, List<Tree> leaves) {
-        if (!tree.hasChildren()) {
-            leaves.add(tree);
-        }
-        for (Tree child : tree.getChildren()) {
-            findLeaves(child, leaves);
+        for (Tree current : TreeTraversal.preOrder(tree)) {
+            if (!current.hasChildren()) {
+                leaves.add(current);
+            }
         }
         return leaves;
     }
@@ -256,7 +566,8 @@ public class Tree {
 
     @SuppressWarnings("unchecked")
     public <T extends Node> List<Tree> findNodesOfType(Class<T> type, List<Tree> initialSearch) {
-        Stack<Tree> stack = new Stack<>();
+        // Used as a stack from its tail, so the nodes come out in the same order as they did from java.util.Stack
+        Deque<Tree> stack = new ArrayDeque<>();
         List<Tree> nodes = getNode().getClass().equals(type) ? Lists.newArrayList(this) : new ArrayList<Tree>();
 
         if (initialSearch == null) {
@@ -265,7 +576,7 @@ public class Tree {
 
         stack.addAll(initialSearch);
         while (!stack.isEmpty()) {
-            Tree current = stack.pop();
+            Tree current = stack.removeLast();
             if (current.getNode().getClass().equals(type)) {
                 nodes.add(current);
             }
@@ -274,4 +585,50 @@ public class Tree {
         return nodes;
     }
 
+    /*
+     * Shared by the unloaded nodes of one lazy tree.
+     */
+    private static final class Loading {
+
+        private final ChildLoader loader;
+        private final int prefetchDepth;
+
+        private Loading(ChildLoader loader, int prefetchDepth) {
+            this.loader = loader;
+            this.prefetchDepth = prefetchDepth;
+        }
+
+        /*
+         * Fetches a level at a time, so each level is one call to the loader; the nodes of the last level fetched are
+         * left unloaded.
+         */
+        private void load(List<Tree> level) {
+            for (int depth = 0; depth < prefetchDepth && !level.isEmpty(); depth++) {
+                List<Integer> ids = new ArrayList<>(level.size());
+                for (Tree tree : level) {
+                    if (tree.getId() != null) {
+                        ids.add(tree.getId());
+                    }
+                }
+                Map<Integer, List<Node>> children = ids.isEmpty() ? Collections.<Integer, List<Node>>emptyMap() : loader.loadChildren(ids);
+
+                List<Tree> next = new ArrayList<>();
+                for (Tree tree : level) {
+                    tree.loading = null;
+                    List<Node> nodes = tree.getId() == null ? null : children.get(tree.getId());
+                    if (nodes == null) {
+                        continue;
+                    }
+                    for (Node node : nodes) {
+                        Tree child = new Tree(node).setParent(tree);
+                        child.loading = this;
+                        tree.children.add(child);
+                        tree.attached(child);
+                        next.add(child);
+                    }
+                }
+                level = next;
+            }
+        }
+    }
 }
@@ -0,0 +1,115 @@
+package com.github.mwedgwood.model.tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Assembles a tree one node at a time, so rows can be attached while a result set is still being read. Nodes may
+ * arrive in any order: children whose parent hasn't been seen yet are attached when it shows up, and every parent's
+ * children are sorted by their order, then id, once, when the tree is built.
+ */
+public class TreeBuilder {
+
+    // By order, then by id to settle ties the same way the queries that sort in the database do; nulls last
+    private static final Comparator<Tree> CHILDREN_ORDER = new Comparator<Tree>() {
+        @Override
+        public int compare(Tree a, Tree b) {
+            int order = compareNullsLast(a.getNode().getOrder(), b.getNode().getOrder());
+            return order != 0 ? order : compareNullsLast(a.getNode().getId(), b.getNode().getId());
+        }
+    };
+
+    private final IntObjectMap<Tree> trees;
+    private final IntObjectMap<List<Tree>> orphans = new IntObjectMap<>();
+    private final List<Tree> parents = new ArrayList<>();
+    private Tree root;
+    private Tree first;
+
+    public TreeBuilder() {
+        this(16);
+    }
+
+    public TreeBuilder(int expectedSize) {
+        this.trees = new IntObjectMap<>(expectedSize);
+    }
+
+    public TreeBuilder add(Node node) {
+        Tree tree = new Tree(node);
+        if (first == null) {
+            first = tree;
+        }
+
+        Integer id = node.getId();
+        if (id != null) {
+            trees.put(id, tree);
+
+            List<Tree> children = orphans.isEmpty() ? null : orphans.remove(id);
+            if (children != null) {
+                for (Tree child : children) {
+                    attach(tree, child);
+                }
+            }
+        }
+
+        Integer parentId = node.getParentId();
+        if (parentId == null || parentId == 0) {
+            if (root == null) {
+                root = tree;
+            }
+            return this;
+        }
+
+        Tree parent = trees.get(parentId);
+        if (parent != null) {
+            attach(parent, tree);
+        } else {
+            List<Tree> siblings = orphans.get(parentId);
+            if (siblings == null) {
+                orphans.put(parentId, siblings = new ArrayList<>());
+            }
+            siblings.add(tree);
+        }
+        return this;
+    }
+
+    /*
+     * Returns the node without a parent id, or, when the rows describe a subtree, the topmost ancestor of the first
+     * node added. Children whose parent never arrived stay detached.
+     */
+    public Tree build() {
+        for (Tree parent : parents) {
+            sortChildren(parent.getChildren());
+        }
+        parents.clear();
+
+        if (root != null || first == null) {
+            return root;
+        }
+        return first.findRoot();
+    }
+
+    private void attach(Tree parent, Tree child) {
+        if (!parent.hasChildren()) {
+            parents.add(parent);
+        }
+        parent.addChild(child);
+    }
+
+    private static int compareNullsLast(Integer x, Integer y) {
+        if (x == null || y == null) {
+            return x == null ? (y == null ? 0 : 1) : -1;
+        }
+        return x.compareTo(y);
+    }
+
+    private static void sortChildren(List<Tree> children) {
+        for (int i = 1; i < children.size(); i++) {
+            if (CHILDREN_ORDER.compare(children.get(i - 1), children.get(i)) > 0) {
+                Collections.sort(children, CHILDREN_ORDER);
+                return;
+            }
+        }
+    }
+}
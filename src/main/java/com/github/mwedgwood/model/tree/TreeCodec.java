@@ -0,0 +1,301 @@
+package com.github.mwedgwood.model.tree;
+
+import com.github.mwedgwood.util.ByteBufferPool;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Binary encoding of a tree and its Node and ComplexNode values, a fraction of the size of the JSON and without the
+ * parsing. After a version byte and the node count come the distinct names and descriptions, each written once, then
+ * the nodes in depth first order, each with the index of its parent, so decoding rebuilds the children in order without
+ * sorting. Integers are varints, zigzag encoded where they may be negative or null.
+ *
+ * Encoded buffers come from a ByteBufferPool and go back to it through release(); decode reads from any buffer.
+ */
+public class TreeCodec {
+
+    private static final byte VERSION = 1;
+
+    private static final byte NODE = 0;
+    private static final byte COMPLEX_NODE = 1;
+
+    private final ByteBufferPool pool;
+
+    public TreeCodec() {
+        this(new ByteBufferPool());
+    }
+
+    public TreeCodec(ByteBufferPool pool) {
+        this.pool = pool;
+    }
+
+    /*
+     * Encodes the subtree into a pooled buffer, flipped and ready to read or write out.
+     */
+    public ByteBuffer encode(Tree tree) {
+        Encoding encoding = new Encoding(tree);
+        ByteBuffer buffer = pool.acquire(encoding.size());
+        encoding.writeTo(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        pool.release(buffer);
+    }
+
+    public byte[] toBytes(Tree tree) {
+        Encoding encoding = new Encoding(tree);
+        ByteBuffer buffer = ByteBuffer.allocate(encoding.size());
+        encoding.writeTo(buffer);
+        return buffer.array();
+    }
+
+    /*
+     * Reads a tree from the buffer's position, leaving it just past the encoding.
+     */
+    public Tree decode(ByteBuffer buffer) {
+        try {
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported tree encoding version " + version);
+            }
+            int count = readInt(buffer);
+            String[] strings = new String[readInt(buffer) + 1];
+            for (int i = 1; i < strings.length; i++) {
+                strings[i] = readString(buffer);
+            }
+
+            Tree[] trees = new Tree[count];
+            for (int i = 0; i < count; i++) {
+                Tree tree = new Tree(readNode(buffer, strings));
+                int parent = readInt(buffer) - 1;
+                if (parent >= 0) {
+                    if (parent >= i) {
+                        throw new IllegalArgumentException("Node " + i + " refers to parent " + parent + " which does not precede it");
+                    }
+                    trees[parent].getChildren().add(tree.setParent(trees[parent]));
+                }
+                trees[i] = tree;
+            }
+            return count == 0 ? null : trees[0];
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated or corrupt tree encoding", e);
+        }
+    }
+
+    public Tree fromBytes(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    private static Node readNode(ByteBuffer buffer, String[] strings) {
+        byte type = buffer.get();
+        Node node;
+        if (type == NODE) {
+            node = new Node();
+        } else if (type == COMPLEX_NODE) {
+            ComplexNode complexNode = new ComplexNode();
+            complexNode.setClientId(readNullable(buffer));
+            node = complexNode;
+        } else {
+            throw new IllegalArgumentException("Unknown node type " + type);
+        }
+        return node.setId(readNullable(buffer))
+                .setParentId(readNullable(buffer))
+                .setOrder(readNullable(buffer))
+                .setName(strings[readInt(buffer)])
+                .setDescription(strings[readInt(buffer)]);
+    }
+
+    /*
+     * Everything needed to write a tree, gathered in one walk so the exact size is known before a buffer is taken.
+     */
+    private static final class Encoding {
+
+        private final List<Tree> trees = new ArrayList<>();
+        private final int[] parents;
+        private final Map<String, Integer> stringIndexes = new HashMap<>();
+        private final List<byte[]> strings = new ArrayList<>();
+        private int size;
+
+        private Encoding(Tree root) {
+            List<Integer> parentIndexes = new ArrayList<>();
+            Deque<Tree> stack = new ArrayDeque<>();
+            Deque<Integer> stackParents = new ArrayDeque<>();
+            stack.push(root);
+            stackParents.push(0);
+            while (!stack.isEmpty()) {
+                Tree tree = stack.pop();
+                parentIndexes.add(stackParents.pop());
+                trees.add(tree);
+                List<Tree> children = tree.getChildren();
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    stack.push(children.get(i));
+                    stackParents.push(trees.size());
+                }
+            }
+
+            // Parents are stored one up, 0 being the root's lack of one
+            parents = new int[trees.size()];
+            size = 1 + intSize(trees.size());
+            for (int i = 0; i < trees.size(); i++) {
+                Node node = trees.get(i).getNode();
+                parents[i] = parentIndexes.get(i);
+                // stringIndex() adds the size of strings it hasn't seen, so it's called ahead of the sum
+                int name = stringIndex(node.getName());
+                int description = stringIndex(node.getDescription());
+                size += 1 + intSize(parents[i]) + intSize(name) + intSize(description)
+                        + nullableSize(node.getId()) + nullableSize(node.getParentId()) + nullableSize(node.getOrder());
+                if (type(node) == COMPLEX_NODE) {
+                    size += nullableSize(((ComplexNode) node).getClientId());
+                }
+            }
+            size += intSize(strings.size());
+        }
+
+        private int stringIndex(String string) {
+            if (string == null) {
+                return 0;
+            }
+            Integer index = stringIndexes.get(string);
+            if (index == null) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                strings.add(bytes);
+                stringIndexes.put(string, index = strings.size());
+                size += intSize(bytes.length) + bytes.length;
+            }
+            return index;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void writeTo(ByteBuffer buffer) {
+            buffer.put(VERSION);
+            writeInt(buffer, trees.size());
+            writeInt(buffer, strings.size());
+            for (byte[] string : strings) {
+                writeInt(buffer, string.length);
+                buffer.put(string);
+            }
+
+            for (int i = 0; i < trees.size(); i++) {
+                Node node = trees.get(i).getNode();
+                byte type = type(node);
+                buffer.put(type);
+                if (type == COMPLEX_NODE) {
+                    writeNullable(buffer, ((ComplexNode) node).getClientId());
+                }
+                writeNullable(buffer, node.getId());
+                writeNullable(buffer, node.getParentId());
+                writeNullable(buffer, node.getOrder());
+                writeInt(buffer, stringIndex(node.getName()));
+                writeInt(buffer, stringIndex(node.getDescription()));
+                writeInt(buffer, parents[i]);
+            }
+        }
+
+        private static byte type(Node node) {
+            if (node.getClass() == Node.class) {
+                return NODE;
+            }
+            if (node.getClass() == ComplexNode.class) {
+                return COMPLEX_NODE;
+            }
+            throw new IllegalArgumentException("Can not encode nodes of type " + node.getClass().getName());
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = readInt(buffer);
+        if (buffer.hasArray()) {
+            String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return string;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Unsigned varints, 7 bits a byte, low bits first
+
+    private static void writeInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int readInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static int intSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // Nullable ints are zigzag encoded and shifted up by one, so null is 0 and small negatives stay small
+
+    private static long nullable(Integer value) {
+        return value == null ? 0 : ((((long) value << 1) ^ (value >> 31)) & 0xFFFFFFFFL) + 1;
+    }
+
+    private static void writeNullable(ByteBuffer buffer, Integer value) {
+        long encoded = nullable(value);
+        while ((encoded & ~0x7FL) != 0) {
+            buffer.put((byte) ((encoded & 0x7F) | 0x80));
+            encoded >>>= 7;
+        }
+        buffer.put((byte) encoded);
+    }
+
+    private static Integer readNullable(ByteBuffer buffer) {
+        long encoded = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            encoded |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (encoded == 0) {
+                    return null;
+                }
+                int zigzag = (int) (encoded - 1);
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static int nullableSize(Integer value) {
+        long encoded = nullable(value);
+        int size = 1;
+        while ((encoded & ~0x7FL) != 0) {
+            encoded >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,170 @@
+package com.github.mwedgwood.model.tree;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+ * Lazy walks over a subtree with an explicit stack or queue, so they don't overflow on deep trees and a caller that
+ * stops early only pays for the nodes it saw. Changing the subtree during a walk gives undefined results.
+ */
+final class TreeTraversal {
+
+    private TreeTraversal() {
+    }
+
+    static Iterable<Tree> preOrder(final Tree root) {
+        return new Iterable<Tree>() {
+            @Override
+            public Iterator<Tree> iterator() {
+                return new PreOrderIterator(root);
+            }
+        };
+    }
+
+    static Iterable<Tree> postOrder(final Tree root) {
+        return new Iterable<Tree>() {
+            @Override
+            public Iterator<Tree> iterator() {
+                return new PostOrderIterator(root);
+            }
+        };
+    }
+
+    static Iterable<Tree> breadthFirst(final Tree root) {
+        return new Iterable<Tree>() {
+            @Override
+            public Iterator<Tree> iterator() {
+                return new BreadthFirstIterator(root);
+            }
+        };
+    }
+
+    /*
+     * A sequential stream over the walk, which starts when the stream's terminal operation runs.
+     */
+    static Stream<Tree> stream(final Iterable<Tree> walk) {
+        return StreamSupport.stream(new Supplier<Spliterator<Tree>>() {
+            @Override
+            public Spliterator<Tree> get() {
+                return Spliterators.spliteratorUnknownSize(walk.iterator(), CHARACTERISTICS);
+            }
+        }, CHARACTERISTICS, false);
+    }
+
+    private static final int CHARACTERISTICS = Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL;
+
+    private abstract static class TreeIterator implements Iterator<Tree> {
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class PreOrderIterator extends TreeIterator {
+
+        private final Deque<Tree> stack = new ArrayDeque<>();
+
+        private PreOrderIterator(Tree root) {
+            stack.push(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !stack.isEmpty();
+        }
+
+        @Override
+        public Tree next() {
+            if (stack.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Tree tree = stack.pop();
+            List<Tree> children = tree.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--) {
+                stack.push(children.get(i));
+            }
+            return tree;
+        }
+    }
+
+    /*
+     * Keeps the path from the root to the next node, each with the index of the child to descend into next.
+     */
+    private static final class PostOrderIterator extends TreeIterator {
+
+        private final Deque<Tree> path = new ArrayDeque<>();
+        private final Deque<Integer> nextChild = new ArrayDeque<>();
+
+        private PostOrderIterator(Tree root) {
+            descend(root);
+        }
+
+        private void descend(Tree tree) {
+            for (; ; ) {
+                path.push(tree);
+                if (!tree.hasChildren()) {
+                    nextChild.push(0);
+                    return;
+                }
+                nextChild.push(1);
+                tree = tree.getChildren().get(0);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !path.isEmpty();
+        }
+
+        @Override
+        public Tree next() {
+            if (path.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Tree tree = path.pop();
+            nextChild.pop();
+            if (!path.isEmpty()) {
+                List<Tree> siblings = path.peek().getChildren();
+                int index = nextChild.pop();
+                nextChild.push(index + 1);
+                if (index < siblings.size()) {
+                    descend(siblings.get(index));
+                }
+            }
+            return tree;
+        }
+    }
+
+    private static final class BreadthFirstIterator extends TreeIterator {
+
+        private final Deque<Tree> queue = new ArrayDeque<>();
+
+        private BreadthFirstIterator(Tree root) {
+            queue.add(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public Tree next() {
+            if (queue.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Tree tree = queue.remove();
+            queue.addAll(tree.getChildren());
+            return tree;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Runs the operations of another TreeRepository off the caller's thread, completing a CompletableFuture with the
+ * result, or with whatever the operation threw.
+ *
+ * At most maxConcurrency operations run at a time, which should match the size of the connection pool, and at most
+ * maxQueued more wait for their turn. Anything beyond that is refused straight away: its future fails with a
+ * RejectedExecutionException rather than queueing up for a connection that won't come.
+ */
+public class AsyncTreeRepository implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncTreeRepository.class);
+
+    private final TreeRepository delegate;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int maxQueued;
+    private final int capacity;
+    private final Semaphore admitted;
+    private final Semaphore running;
+    private volatile boolean closed;
+
+    /*
+     * Uses a virtual thread per operation where the runtime has them, and otherwise maxConcurrency daemon threads.
+     */
+    public AsyncTreeRepository(TreeRepository delegate, int maxConcurrency, int maxQueued) {
+        this(delegate, defaultExecutor(maxConcurrency), true, maxConcurrency, maxQueued);
+    }
+
+    /*
+     * Runs the operations on the given executor, which is left running by close().
+     */
+    public AsyncTreeRepository(TreeRepository delegate, ExecutorService executor, int maxConcurrency, int maxQueued) {
+        this(delegate, executor, false, maxConcurrency, maxQueued);
+    }
+
+    private AsyncTreeRepository(TreeRepository delegate, ExecutorService executor, boolean ownsExecutor, int maxConcurrency, int maxQueued) {
+        if (maxConcurrency < 1) throw new IllegalArgumentException("maxConcurrency must be positive");
+        if (maxQueued < 0) throw new IllegalArgumentException("maxQueued can not be negative");
+        this.delegate = delegate;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.maxQueued = maxQueued;
+        this.capacity = maxConcurrency + maxQueued;
+        this.admitted = new Semaphore(capacity);
+        this.running = new Semaphore(maxConcurrency, true);
+    }
+
+    public CompletableFuture<Tree> findById(Integer id) {
+        return submit(() -> delegate.findById(id));
+    }
+
+    public CompletableFuture<Tree> findEntireTree(Integer rootId) {
+        return submit(() -> delegate.findEntireTree(rootId));
+    }
+
+    public CompletableFuture<Tree> findByIdForDepth(Integer id, Integer depth) {
+        return submit(() -> delegate.findByIdForDepth(id, depth));
+    }
+
+    public CompletableFuture<Map<Integer, Tree>> findEntireTrees(Collection<Integer> rootIds) {
+        return submit(() -> delegate.findEntireTrees(rootIds));
+    }
+
+    public CompletableFuture<Map<Integer, Tree>> findByIdsForDepth(Collection<Integer> ids, Integer depth) {
+        return submit(() -> delegate.findByIdsForDepth(ids, depth));
+    }
+
+    /*
+     * Only the prefetched levels are read off the caller's thread; deeper children are fetched by whichever thread
+     * asks for them.
+     */
+    public CompletableFuture<Tree> findLazyTree(Integer id, int prefetchDepth) {
+        return submit(() -> delegate.findLazyTree(id, prefetchDepth));
+    }
+
+    /*
+     * All the children of the node, or the roots for a null parent, in their order.
+     */
+    public CompletableFuture<List<Tree>> findChildren(Integer parentId) {
+        return submit(() -> delegate.findChildren(parentId).list());
+    }
+
+    /*
+     * One page of the children, as RepositoryResult.limit() numbers them.
+     */
+    public CompletableFuture<List<Tree>> findChildren(Integer parentId, int page, int perPage) {
+        return submit(() -> delegate.findChildren(parentId).limit(page, perPage).list());
+    }
+
+    /*
+     * The stream is written from another thread, and is not closed.
+     */
+    public CompletableFuture<Integer> exportJson(Integer rootId, OutputStream out, boolean pretty) {
+        return submit(() -> delegate.exportJson(rootId, out, pretty));
+    }
+
+    public CompletableFuture<Tree> save(Tree tree) {
+        return submit(() -> {
+            delegate.save(tree);
+            return tree;
+        });
+    }
+
+    public CompletableFuture<Tree> update(Tree tree) {
+        return submit(() -> {
+            delegate.update(tree);
+            return tree;
+        });
+    }
+
+    public CompletableFuture<Void> delete(Tree tree) {
+        return submit(() -> {
+            delegate.delete(tree);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Integer> bulkLoad(Tree tree) {
+        return submit(() -> delegate.bulkLoad(tree));
+    }
+
+    /*
+     * The iterator is consumed on another thread.
+     */
+    public CompletableFuture<Integer> bulkLoad(Iterator<? extends Node> nodes) {
+        return submit(() -> delegate.bulkLoad(nodes));
+    }
+
+    public CompletableFuture<Boolean> move(Integer nodeId, Integer newParentId, int position) {
+        return submit(() -> delegate.move(nodeId, newParentId, position));
+    }
+
+    public CompletableFuture<Integer> deleteSubtree(Integer id) {
+        return submit(() -> delegate.deleteSubtree(id));
+    }
+
+    public CompletableFuture<Integer> deleteSubtree(Integer id, int chunkSize) {
+        return submit(() -> delegate.deleteSubtree(id, chunkSize));
+    }
+
+    /*
+     * Operations admitted but not yet finished, running or waiting.
+     */
+    public int getPending() {
+        return capacity - admitted.availablePermits();
+    }
+
+    /*
+     * Stops taking operations, lets the admitted ones finish, and shuts down the executor if this created it. Anything
+     * submitted afterwards fails with a RejectedExecutionException, on a shared executor too.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new RejectedExecutionException("The repository is closed"));
+            return future;
+        }
+        if (!admitted.tryAcquire()) {
+            future.completeExceptionally(new RejectedExecutionException("Too many operations waiting, at most " + maxQueued + " may queue"));
+            return future;
+        }
+
+        try {
+            executor.execute(() -> {
+                T result = null;
+                Throwable failure = null;
+                try {
+                    running.acquire();
+                    try {
+                        result = operation.call();
+                    } finally {
+                        running.release();
+                    }
+                } catch (InterruptedException e) {
+                    // Interrupted waiting for its turn, most likely by a shutdownNow() of the executor
+                    Thread.currentThread().interrupt();
+                    failure = e;
+                } catch (Throwable e) {
+                    failure = e;
+                } finally {
+                    // Before completing, so callbacks that submit the next operation find room for it
+                    admitted.release();
+                }
+                if (failure == null) {
+                    future.complete(result);
+                } else {
+                    future.completeExceptionally(failure);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admitted.release();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private static ExecutorService defaultExecutor(int threads) {
+        // Looked up reflectively, as the project still compiles for Java 8
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            LOGGER.info("Running repository operations on virtual threads");
+            return executor;
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            // Before Java 21, or in 19 and 20 without preview features enabled
+            LOGGER.info("Running repository operations on {} threads", threads);
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "tree-repository-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.PreparedBatchPart;
+
+class BatchNodeWriter implements NodeWriter {
+
+    static final String INSERT_SQL = "insert into tree (id, name, description, parent_id, children_order) values (:id, :name, :description, :parentId, :childrenOrder)";
+
+    private final PreparedBatch batch;
+    private final int batchSize;
+
+    BatchNodeWriter(Handle handle, int batchSize) {
+        this(handle, batchSize, INSERT_SQL);
+    }
+
+    /*
+     * For inserts that write more columns, bound by overriding bind().
+     */
+    BatchNodeWriter(Handle handle, int batchSize, String insertSql) {
+        this.batch = handle.prepareBatch(insertSql);
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void write(Node node) {
+        bind(batch.add(), node);
+
+        if (batch.getSize() >= batchSize) {
+            batch.execute();
+        }
+    }
+
+    void bind(PreparedBatchPart part, Node node) {
+        part.bind("id", node.getId())
+                .bind("name", node.getName())
+                .bind("description", node.getDescription())
+                .bind("parentId", node.getParentId())
+                .bind("childrenOrder", node.getOrder());
+    }
+
+    @Override
+    public void finish() {
+        if (batch.getSize() > 0) {
+            batch.execute();
+        }
+    }
+
+    @Override
+    public void cancel() {
+    }
+}
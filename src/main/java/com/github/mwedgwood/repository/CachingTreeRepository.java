@@ -0,0 +1,432 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Read-through cache of assembled subtrees in front of another TreeRepository, keyed by (id, depth) and weighed by
+ * node count. Every cached node id points back at the entries containing it, so writes only evict the entries that
+ * contain the changed node, its old or new parent, or its descendants. A move that had to renumber its new siblings
+ * also evicts the entries rooted at them.
+ *
+ * Callers always get their own copy of a cached tree, so they are free to modify it.
+ */
+public class CachingTreeRepository implements TreeRepository {
+
+    private final TreeRepository delegate;
+    private final Cache<Key, CachedTree> cache;
+
+    // Guarded by itself; entries are matched by identity, so a replaced entry never unlinks its replacement
+    private final SetMultimap<Integer, CachedTree> entriesByNodeId = HashMultimap.create();
+
+    // Bumped by every write, so a read that raced with a write doesn't cache what it loaded
+    private final AtomicLong generation = new AtomicLong();
+
+    public CachingTreeRepository(TreeRepository delegate, long maximumNodes, long expireAfterWrite, TimeUnit unit) {
+        this.delegate = delegate;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumNodes)
+                .weigher(new Weigher<Key, CachedTree>() {
+                    @Override
+                    public int weigh(Key key, CachedTree entry) {
+                        return entry.nodeIds.length;
+                    }
+                })
+                .expireAfterWrite(expireAfterWrite, unit)
+                .removalListener(new RemovalListener<Key, CachedTree>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Key, CachedTree> notification) {
+                        unlink(notification.getValue());
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /*
+     * Hit, miss and eviction counts since the cache was created.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    @Override
+    public Tree findEntireTree(Integer rootId) {
+        return find(new Key(rootId, null));
+    }
+
+    @Override
+    public Tree findByIdForDepth(Integer id, Integer depth) {
+        return find(new Key(id, depth));
+    }
+
+    /*
+     * Not cached, as the children are fetched as the tree is used.
+     */
+    @Override
+    public Tree findLazyTree(Integer id, int prefetchDepth) {
+        return delegate.findLazyTree(id, prefetchDepth);
+    }
+
+    @Override
+    public RepositoryResult<Tree> findChildren(Integer parentId) {
+        return delegate.findChildren(parentId);
+    }
+
+    @Override
+    public Map<Integer, Tree> findEntireTrees(Collection<Integer> rootIds) {
+        return findTrees(rootIds, null);
+    }
+
+    @Override
+    public Map<Integer, Tree> findByIdsForDepth(Collection<Integer> ids, Integer depth) {
+        return findTrees(ids, depth);
+    }
+
+    /*
+     * Serves what it can from the cache and fetches all the rest in one call to the delegate.
+     */
+    private Map<Integer, Tree> findTrees(Collection<Integer> ids, Integer depth) {
+        Map<Integer, Tree> trees = new LinkedHashMap<>();
+        List<Integer> missing = new ArrayList<>();
+        for (Integer id : ids) {
+            if (id == null || trees.containsKey(id)) {
+                continue;
+            }
+            CachedTree entry = cache.getIfPresent(new Key(id, depth));
+            trees.put(id, entry == null ? null : entry.tree.copy());
+            if (entry == null) {
+                missing.add(id);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            long loadedAt = generation.get();
+            Map<Integer, Tree> loaded = depth == null ? delegate.findEntireTrees(missing) : delegate.findByIdsForDepth(missing, depth);
+            for (Integer id : missing) {
+                Tree tree = loaded.get(id);
+                if (tree == null) {
+                    trees.remove(id);
+                } else {
+                    trees.put(id, tree);
+                    cache(new Key(id, depth), tree.copy(), loadedAt);
+                }
+            }
+        }
+        return trees;
+    }
+
+    /*
+     * Always streams from the database, as exports are meant for trees too big to cache.
+     */
+    @Override
+    public int exportJson(Integer rootId, OutputStream out, boolean pretty) throws IOException {
+        return delegate.exportJson(rootId, out, pretty);
+    }
+
+    private Tree find(Key key) {
+        CachedTree entry = cache.getIfPresent(key);
+        if (entry != null) {
+            return entry.tree.copy();
+        }
+
+        long loadedAt = generation.get();
+        Tree tree = key.depth == null ? delegate.findEntireTree(key.id) : delegate.findByIdForDepth(key.id, key.depth);
+        if (tree != null) {
+            cache(key, tree.copy(), loadedAt);
+        }
+        return tree;
+    }
+
+    private void cache(Key key, Tree tree, long loadedAt) {
+        List<Tree> trees = tree.toList();
+        int[] nodeIds = new int[trees.size()];
+        for (int i = 0; i < nodeIds.length; i++) {
+            nodeIds[i] = trees.get(i).getId();
+        }
+        CachedTree entry = new CachedTree(key, tree, nodeIds);
+
+        // Put under the lock, so a write bumping the generation after the check finds the entry linked and cached
+        synchronized (entriesByNodeId) {
+            if (generation.get() != loadedAt) {
+                return;
+            }
+            for (int id : nodeIds) {
+                entriesByNodeId.put(id, entry);
+            }
+            cache.put(key, entry);
+        }
+    }
+
+    private void unlink(CachedTree entry) {
+        synchronized (entriesByNodeId) {
+            for (int id : entry.nodeIds) {
+                entriesByNodeId.remove(id, entry);
+            }
+        }
+    }
+
+    @Override
+    public Tree findById(Integer id) {
+        return delegate.findById(id);
+    }
+
+    @Override
+    public RepositoryResult<Tree> findAll() {
+        return delegate.findAll();
+    }
+
+    @Override
+    public void save(Tree entity) {
+        try {
+            delegate.save(entity);
+        } finally {
+            invalidate(Collections.singleton(parentId(entity)));
+        }
+    }
+
+    @Override
+    public int bulkLoad(Tree tree) {
+        try {
+            return delegate.bulkLoad(tree);
+        } finally {
+            invalidate(Collections.singleton(parentId(tree)));
+        }
+    }
+
+    @Override
+    public int bulkLoad(final Iterator<? extends Node> nodes) {
+        final Set<Integer> parentIds = new HashSet<>();
+        try {
+            return delegate.bulkLoad(new Iterator<Node>() {
+                @Override
+                public boolean hasNext() {
+                    return nodes.hasNext();
+                }
+
+                @Override
+                public Node next() {
+                    Node node = nodes.next();
+                    parentIds.add(node.getParentId());
+                    return node;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+        } finally {
+            invalidate(parentIds);
+        }
+    }
+
+    @Override
+    public void delete(Tree entity) {
+        try {
+            delegate.delete(entity);
+        } finally {
+            invalidateSubtree(entity);
+        }
+    }
+
+    /*
+     * Evicts the entries containing the node or its descendants, as listed by a cached copy of its whole subtree.
+     * Without one, entries rooted below the node may be stale with nothing linking them to it, so the whole cache is
+     * cleared.
+     */
+    @Override
+    public int deleteSubtree(Integer id) {
+        try {
+            return delegate.deleteSubtree(id);
+        } finally {
+            invalidateDeleted(id);
+        }
+    }
+
+    @Override
+    public int deleteSubtree(Integer id, int chunkSize) {
+        try {
+            return delegate.deleteSubtree(id, chunkSize);
+        } finally {
+            invalidateDeleted(id);
+        }
+    }
+
+    @Override
+    public void update(Tree entity) {
+        try {
+            delegate.update(entity);
+        } finally {
+            invalidateSubtree(entity);
+            invalidate(Collections.singleton(parentId(entity)));
+        }
+    }
+
+    @Override
+    public boolean move(Integer nodeId, Integer newParentId, int position) {
+        boolean renumbered = false;
+        try {
+            renumbered = delegate.move(nodeId, newParentId, position);
+            return renumbered;
+        } finally {
+            // Entries rooted below the node keep their contents, and ones holding only the old parent never had it
+            invalidate(Arrays.asList(nodeId, newParentId));
+            if (renumbered) {
+                // The orders of the new siblings changed too; entries holding the parent are gone already
+                invalidateChildren(newParentId);
+            }
+        }
+    }
+
+    private static Integer parentId(Tree entity) {
+        Integer parentId = entity.getNode().getParentId();
+        return parentId == null && entity.getParent() != null ? entity.getParent().getId() : parentId;
+    }
+
+    /*
+     * Evicts every entry containing the node or one of its descendants, as found in the given tree and in the cached
+     * entries containing the node.
+     */
+    private void invalidateSubtree(Tree entity) {
+        Set<Integer> ids = new HashSet<>();
+        for (Tree tree : entity.toList()) {
+            ids.add(tree.getId());
+        }
+        addCachedDescendants(entity.getId(), ids);
+        invalidate(ids);
+    }
+
+    /*
+     * Evicts the entries rooted at a child of the parent, or at a root when it is null.
+     */
+    private void invalidateChildren(Integer parentId) {
+        generation.incrementAndGet();
+        Integer normalized = JdbcTreeRepositoryImpl.parentId(parentId);
+        for (CachedTree entry : cache.asMap().values()) {
+            if (Objects.equal(JdbcTreeRepositoryImpl.parentId(entry.tree.getNode()), normalized)) {
+                cache.asMap().remove(entry.key, entry);
+            }
+        }
+    }
+
+    private void invalidateDeleted(Integer id) {
+        Set<Integer> ids = new HashSet<>();
+        ids.add(id);
+        if (addCachedDescendants(id, ids)) {
+            invalidate(ids);
+        } else {
+            invalidateAll();
+        }
+    }
+
+    /*
+     * Adds the ids of the node and its descendants found in the cached entries containing it, returning whether one of
+     * them holds its whole subtree.
+     */
+    private boolean addCachedDescendants(Integer id, Set<Integer> ids) {
+        boolean complete = false;
+        for (CachedTree entry : entriesContaining(Collections.singleton(id))) {
+            // Scanned rather than looked up with findById, which would build an index on the shared tree
+            for (Tree tree : entry.tree.toList()) {
+                if (id.equals(tree.getId())) {
+                    for (Tree descendant : tree.toList()) {
+                        ids.add(descendant.getId());
+                    }
+                    complete |= entry.key.depth == null;
+                    break;
+                }
+            }
+        }
+        return complete;
+    }
+
+    private void invalidate(Collection<Integer> ids) {
+        generation.incrementAndGet();
+        for (CachedTree entry : entriesContaining(ids)) {
+            cache.asMap().remove(entry.key, entry);
+        }
+    }
+
+    private List<CachedTree> entriesContaining(Collection<Integer> ids) {
+        List<CachedTree> entries = new ArrayList<>();
+        synchronized (entriesByNodeId) {
+            for (Integer id : ids) {
+                if (id != null) {
+                    entries.addAll(entriesByNodeId.get(id));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static final class CachedTree {
+
+        private final Key key;
+        private final Tree tree;
+        private final int[] nodeIds;
+
+        private CachedTree(Key key, Tree tree, int[] nodeIds) {
+            this.key = key;
+            this.tree = tree;
+            this.nodeIds = nodeIds;
+        }
+    }
+
+    private static final class Key {
+
+        private final Integer id;
+        private final Integer depth;
+
+        private Key(Integer id, Integer depth) {
+            this.id = id;
+            this.depth = depth;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return Objects.equal(id, key.id) && Objects.equal(depth, key.depth);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(id, depth);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.util.IntegerMapper;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Keeps a closure table next to the tree table, with one row for every ancestor/descendant pair (including each node
+ * paired with itself at depth 0), so subtree and ancestor reads are a single indexed join instead of a recursive query:
+ *
+ *   CREATE TABLE tree_closure (
+ *     ancestor_id integer NOT NULL,
+ *     descendant_id integer NOT NULL,
+ *     depth integer NOT NULL,
+ *     PRIMARY KEY (ancestor_id, descendant_id))
+ *   CREATE INDEX tree_closure_descendant ON tree_closure (descendant_id, depth)
+ *
+ * The parent_id column is still maintained, so the adjacency list reads inherited from JdbcTreeRepositoryImpl remain
+ * valid.
+ */
+public class ClosureTableTreeRepositoryImpl extends JdbcTreeRepositoryImpl {
+
+    private static final String SELECT_NODES = "SELECT t.id, t.name, t.description, t.parent_id, t.children_order, c.depth\n";
+
+    public ClosureTableTreeRepositoryImpl(DBI dbi) {
+        super(dbi);
+    }
+
+    public ClosureTableTreeRepositoryImpl(DBI dbi, int batchSize, int fetchSize) {
+        super(dbi, batchSize, fetchSize);
+    }
+
+    @Override
+    public Tree findEntireTree(final Integer rootId) {
+        return inTransaction("findEntireTree", new Operation<Tree>() {
+            @Override
+            public Tree run(Handle handle, OperationTimer timer) throws Exception {
+                String sql = SELECT_NODES +
+                        "FROM tree_closure c\n" +
+                        "JOIN tree t ON (t.id = c.descendant_id)\n" +
+                        "WHERE c.ancestor_id = :id";
+
+                return assemble(handle.createQuery(sql)
+                        .bind("id", rootId), timer);
+            }
+        });
+    }
+
+    @Override
+    public Tree findByIdForDepth(final Integer id, final Integer depth) {
+        if (depth == null) {
+            return findEntireTree(id);
+        }
+        return inTransaction("findByIdForDepth", new Operation<Tree>() {
+            @Override
+            public Tree run(Handle handle, OperationTimer timer) throws Exception {
+                String sql = SELECT_NODES +
+                        "FROM tree_closure c\n" +
+                        "JOIN tree t ON (t.id = c.descendant_id)\n" +
+                        "WHERE c.ancestor_id = :id AND c.depth < :depth";
+
+                return assemble(handle.createQuery(sql)
+                        .bind("id", id)
+                        .bind("depth", depth), timer);
+            }
+        });
+    }
+
+    @Override
+    Query<Map<String, Object>> forestQuery(Handle handle, List<Integer> ids, Integer depth) {
+        String sql = "SELECT t.id, t.name, t.description, t.parent_id, t.children_order, c.ancestor_id AS root_id\n" +
+                "FROM tree_closure c\n" +
+                "JOIN tree t ON (t.id = c.descendant_id)\n" +
+                "WHERE c.ancestor_id IN (" + parameterList("id", ids.size()) + ")" +
+                (depth == null ? "" : " AND c.depth < :depth");
+
+        Query<Map<String, Object>> query = bindList(handle.createQuery(sql), "id", ids);
+        return depth == null ? query : query.bind("depth", depth);
+    }
+
+    /*
+     * Returns the chain of ancestors of the node, from the topmost one down to the node itself.
+     */
+    public Tree findAncestors(final Integer id) {
+        return inTransaction("findAncestors", new Operation<Tree>() {
+            @Override
+            public Tree run(Handle handle, OperationTimer timer) throws Exception {
+                String sql = SELECT_NODES +
+                        "FROM tree_closure c\n" +
+                        "JOIN tree t ON (t.id = c.ancestor_id)\n" +
+                        "WHERE c.descendant_id = :id";
+
+                return assemble(handle.createQuery(sql)
+                        .bind("id", id), timer);
+            }
+        });
+    }
+
+    @Override
+    int save(Tree entity, Handle handle) throws SQLException {
+        int count = super.save(entity, handle);
+
+        // Statements in a batch run in order, so every parent's rows exist by the time its children are inserted
+        PreparedBatch batch = handle.prepareBatch("INSERT INTO tree_closure (ancestor_id, descendant_id, depth)\n" +
+                "SELECT c.ancestor_id, t.id, c.depth + 1 FROM tree_closure c JOIN tree t ON (t.id = :id) WHERE c.descendant_id = :parentId\n" +
+                "UNION ALL\n" +
+                "SELECT t.id, t.id, 0 FROM tree t WHERE t.id = :id");
+        for (List<Tree> level : levels(entity)) {
+            for (Tree tree : level) {
+                batch.add()
+                        .bind("id", tree.getId())
+                        .bind("parentId", tree.getNode().getParentId());
+
+                if (batch.getSize() >= batchSize) {
+                    batch.execute();
+                }
+            }
+        }
+        if (batch.getSize() > 0) {
+            batch.execute();
+        }
+        return count;
+    }
+
+    @Override
+    void bulkLoaded(Handle handle, IdRange loaded) {
+        addMissingClosureRows(handle, loaded);
+    }
+
+    @Override
+    public void delete(final Tree entity) {
+        inTransaction("delete", new Operation<Object>() {
+            @Override
+            public Object run(Handle handle, OperationTimer timer) throws Exception {
+                handle.createStatement("delete from tree_closure where descendant_id = :id or ancestor_id = :id")
+                        .bind("id", entity.getId())
+                        .execute();
+                handle.createStatement("delete from tree where id = :id")
+                        .bind("id", entity.getId())
+                        .execute();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    int deleteSubtree(Handle handle, Integer id) {
+        int deleted = handle.createStatement("DELETE FROM tree WHERE id IN (SELECT descendant_id FROM tree_closure WHERE ancestor_id = :id)")
+                .bind("id", id)
+                .execute();
+        handle.createStatement("DELETE FROM tree_closure WHERE descendant_id IN (SELECT descendant_id FROM tree_closure WHERE ancestor_id = :id)")
+                .bind("id", id)
+                .execute();
+        return deleted;
+    }
+
+    @Override
+    List<Integer> subtreeIds(Handle handle, Integer id) {
+        return handle.createQuery("SELECT descendant_id FROM tree_closure WHERE ancestor_id = :id ORDER BY depth DESC")
+                .bind("id", id)
+                .map(IntegerMapper.FIRST)
+                .list();
+    }
+
+    /*
+     * Deleting leaves first, every row naming one of the nodes as ancestor goes with its descendant's own rows.
+     */
+    @Override
+    int deleteRows(Handle handle, List<Integer> ids) {
+        int deleted = super.deleteRows(handle, ids);
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            List<Integer> chunk = ids.subList(from, Math.min(from + batchSize, ids.size()));
+            bindList(handle.createStatement("DELETE FROM tree_closure WHERE descendant_id IN (" + parameterList("id", chunk.size()) + ")"), "id", chunk)
+                    .execute();
+        }
+        return deleted;
+    }
+
+    /*
+     * Moves each subtree by replacing the closure rows that link it to its old ancestors with rows linking it to the
+     * new ones.
+     */
+    @Override
+    void moved(Handle handle, List<Node> nodes) {
+        for (Node node : nodes) {
+            move(handle, node.getId(), parentId(node));
+        }
+    }
+
+    private void move(Handle handle, Integer id, Integer parentId) {
+        if (parentId != null) {
+            Integer cycles = handle.createQuery("select count(*) from tree_closure where ancestor_id = :id and descendant_id = :parentId")
+                    .bind("id", id)
+                    .bind("parentId", parentId)
+                    .map(IntegerMapper.FIRST)
+                    .first();
+            if (cycles > 0) throw new IllegalArgumentException("Can not move node " + id + " below its own descendant " + parentId);
+        }
+
+        handle.createStatement("DELETE FROM tree_closure\n" +
+                "WHERE descendant_id IN (SELECT descendant_id FROM tree_closure WHERE ancestor_id = :id)\n" +
+                "AND ancestor_id NOT IN (SELECT descendant_id FROM tree_closure WHERE ancestor_id = :id)")
+                .bind("id", id)
+                .execute();
+
+        if (parentId != null) {
+            handle.createStatement("INSERT INTO tree_closure (ancestor_id, descendant_id, depth)\n" +
+                    "SELECT p.ancestor_id, s.descendant_id, p.depth + s.depth + 1\n" +
+                    "FROM tree_closure p\n" +
+                    "JOIN tree_closure s ON (s.ancestor_id = :id)\n" +
+                    "WHERE p.descendant_id = :parentId")
+                    .bind("id", id)
+                    .bind("parentId", parentId)
+                    .execute();
+        }
+    }
+
+    /*
+     * Recomputes the closure table from the parent_id column, e.g. after rows were written to the tree table directly.
+     */
+    public void rebuild() {
+        inTransaction("rebuild", new Operation<Object>() {
+            @Override
+            public Object run(Handle handle, OperationTimer timer) throws Exception {
+                handle.execute("delete from tree_closure");
+                addMissingClosureRows(handle, null);
+                return null;
+            }
+        });
+    }
+
+    /*
+     * Adds the rows for nodes that are missing from the closure table with one set-based statement per level of depth,
+     * looking only at the nodes with ids in the range, or at every node when it is null.
+     */
+    private void addMissingClosureRows(Handle handle, IdRange ids) {
+        String range = ids == null ? "" : "AND t.id BETWEEN :minId AND :maxId\n";
+        bindRange(handle.createStatement("INSERT INTO tree_closure (ancestor_id, descendant_id, depth)\n" +
+                "SELECT t.id, t.id, 0 FROM tree t\n" +
+                "WHERE NOT EXISTS (SELECT 1 FROM tree_closure x WHERE x.ancestor_id = t.id AND x.descendant_id = t.id)\n" +
+                range), ids)
+                .execute();
+
+        for (int depth = 1; ; depth++) {
+            int inserted = bindRange(handle.createStatement("INSERT INTO tree_closure (ancestor_id, descendant_id, depth)\n" +
+                    "SELECT c.ancestor_id, t.id, c.depth + 1\n" +
+                    "FROM tree t\n" +
+                    "JOIN tree_closure c ON (c.descendant_id = t.parent_id AND c.depth = :parentDepth)\n" +
+                    "WHERE NOT EXISTS (SELECT 1 FROM tree_closure x WHERE x.ancestor_id = c.ancestor_id AND x.descendant_id = t.id)\n" +
+                    range), ids)
+                    .bind("parentDepth", depth - 1)
+                    .execute();
+            if (inserted == 0) {
+                break;
+            }
+        }
+    }
+}
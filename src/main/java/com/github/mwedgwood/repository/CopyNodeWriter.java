@@ -0,0 +1,100 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/*
+ * Streams nodes into the tree table with the PostgreSQL COPY protocol, using the text format.
+ */
+class CopyNodeWriter implements NodeWriter {
+
+    private static final String COPY_SQL = "COPY tree (id, name, description, parent_id, children_order) FROM STDIN";
+
+    private final CopyIn copyIn;
+    private final int rowsPerWrite;
+    private final StringBuilder buffer = new StringBuilder();
+    private int bufferedRows;
+
+    CopyNodeWriter(Connection connection, int rowsPerWrite) throws SQLException {
+        this.copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_SQL);
+        this.rowsPerWrite = rowsPerWrite;
+    }
+
+    static boolean isSupported(Connection connection) throws SQLException {
+        return connection instanceof PGConnection || (Dialect.of(connection) == Dialect.POSTGRES && connection.isWrapperFor(PGConnection.class));
+    }
+
+    @Override
+    public void write(Node node) throws SQLException {
+        append(node.getId()).append('\t');
+        append(node.getName()).append('\t');
+        append(node.getDescription()).append('\t');
+        append(node.getParentId()).append('\t');
+        append(node.getOrder()).append('\n');
+
+        if (++bufferedRows >= rowsPerWrite) {
+            flush();
+        }
+    }
+
+    @Override
+    public void finish() throws SQLException {
+        flush();
+        copyIn.endCopy();
+    }
+
+    @Override
+    public void cancel() {
+        try {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        } catch (SQLException ignored) {
+            // the surrounding transaction is rolled back anyway
+        }
+    }
+
+    private void flush() throws SQLException {
+        if (buffer.length() > 0) {
+            byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+            copyIn.writeToCopy(bytes, 0, bytes.length);
+            buffer.setLength(0);
+        }
+        bufferedRows = 0;
+    }
+
+    private StringBuilder append(Integer value) {
+        return value == null ? buffer.append("\\N") : buffer.append(value.intValue());
+    }
+
+    private StringBuilder append(String value) {
+        if (value == null) {
+            return buffer.append("\\N");
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    buffer.append("\\\\");
+                    break;
+                case '\t':
+                    buffer.append("\\t");
+                    break;
+                case '\n':
+                    buffer.append("\\n");
+                    break;
+                case '\r':
+                    buffer.append("\\r");
+                    break;
+                default:
+                    buffer.append(c);
+            }
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.mwedgwood.repository;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.util.StringMapper;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+enum Dialect {
+
+    POSTGRES {
+        @Override
+        String findSequenceName(Handle handle, String table, String column) {
+            return handle.createQuery("SELECT pg_get_serial_sequence(:table, :column)")
+                    .bind("table", table)
+                    .bind("column", column)
+                    .map(StringMapper.FIRST)
+                    .first();
+        }
+
+        @Override
+        String rowSource(String countParameter) {
+            return "generate_series(1, :" + countParameter + ")";
+        }
+
+        @Override
+        String renumberChildrenStatement(String siblings, String gapParameter) {
+            return "UPDATE tree t SET children_order = r.position * :" + gapParameter + "\n" +
+                    "FROM (SELECT s.id, row_number() OVER (ORDER BY s.children_order NULLS LAST, s.id) AS position\n" +
+                    "      FROM tree s WHERE " + String.format(siblings, "s") + ") r\n" +
+                    "WHERE t.id = r.id";
+        }
+    },
+
+    H2 {
+        @Override
+        String findSequenceName(Handle handle, String table, String column) {
+            // Serial columns default to "(NEXT VALUE FOR PUBLIC.SYSTEM_SEQUENCE_...)"
+            String columnDefault = handle.createQuery("SELECT column_default FROM information_schema.columns WHERE table_name = :table AND column_name = :column")
+                    .bind("table", table.toUpperCase())
+                    .bind("column", column.toUpperCase())
+                    .map(StringMapper.FIRST)
+                    .first();
+            return columnDefault == null ? null : columnDefault.replaceAll("^\\(?NEXT VALUE FOR ([^)]+)\\)?$", "$1");
+        }
+
+        @Override
+        String rowSource(String countParameter) {
+            return "system_range(1, :" + countParameter + ")";
+        }
+
+        @Override
+        String renumberChildrenStatement(String siblings, String gapParameter) {
+            // No window functions in H2 1.4, so each row counts the siblings sorting before it
+            String order = "coalesce(%s.children_order, " + Integer.MAX_VALUE + ")";
+            String sOrder = String.format(order, "s");
+            String tOrder = String.format(order, "t");
+            return "UPDATE tree t SET children_order = :" + gapParameter + " * (\n" +
+                    "  SELECT count(*) + 1 FROM tree s\n" +
+                    "  WHERE " + String.format(siblings, "s") + "\n" +
+                    "  AND (" + sOrder + " < " + tOrder + " OR (" + sOrder + " = " + tOrder + " AND s.id < t.id)))\n" +
+                    "WHERE " + String.format(siblings, "t");
+        }
+
+        @Override
+        boolean supportsDeleteWithCommonTableExpression() {
+            return false;
+        }
+
+        @Override
+        boolean supportsRowValueComparison() {
+            // H2 1.4 reads (a, b) as an array, and compares arrays without SQL's null semantics
+            return false;
+        }
+
+        @Override
+        String recursiveParameter(String name, Integer value) {
+            // H2 1.4 silently matches nothing when a parameter is bound inside a recursive common table expression
+            return String.valueOf(value);
+        }
+    };
+
+    abstract String findSequenceName(Handle handle, String table, String column);
+
+    abstract String rowSource(String countParameter);
+
+    /*
+     * Spaces the siblings gap apart, in their current order with nulls last, in a single statement; siblings is the
+     * condition picking them, with %s standing for the table alias.
+     */
+    abstract String renumberChildrenStatement(String siblings, String gapParameter);
+
+    String recursiveParameter(String name, Integer value) {
+        return ":" + name;
+    }
+
+    boolean supportsDeleteWithCommonTableExpression() {
+        return true;
+    }
+
+    boolean supportsRowValueComparison() {
+        return true;
+    }
+
+    String nextValuesQuery(String sequenceName, String countParameter) {
+        return "SELECT nextval('" + sequenceName + "') FROM " + rowSource(countParameter);
+    }
+
+    static Dialect of(Handle handle) {
+        try {
+            return of(handle.getConnection());
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static Dialect of(Connection connection) throws SQLException {
+        return "H2".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName()) ? H2 : POSTGRES;
+    }
+}
@@ -0,0 +1,211 @@
+package com.github.mwedgwood.repository;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Keeps a histogram of every timing, and of the row counts, per operation, in memory. Recording is lock free and
+ * allocation free once an operation has been seen; dump() prints count, mean, percentiles and maximum per operation.
+ *
+ * Values land in buckets of 1/8th of a power of two, so reported percentiles are at most 12.5% above the real ones.
+ */
+public class HistogramReporter implements RepositoryListener {
+
+    public static final String CONNECTION_WAIT = "connectionWait";
+    public static final String QUERY = "query";
+    public static final String MAPPING = "mapping";
+    public static final String ASSEMBLY = "assembly";
+    public static final String TOTAL = "total";
+    public static final String ROWS = "rows";
+
+    private final ConcurrentMap<String, OperationHistograms> operations = new ConcurrentHashMap<>();
+
+    @Override
+    public void operationCompleted(OperationMetrics metrics) {
+        OperationHistograms histograms = operations.get(metrics.getOperation());
+        if (histograms == null) {
+            OperationHistograms created = new OperationHistograms();
+            histograms = operations.putIfAbsent(metrics.getOperation(), created);
+            if (histograms == null) {
+                histograms = created;
+            }
+        }
+        histograms.record(metrics);
+    }
+
+    /*
+     * The histogram of one metric (CONNECTION_WAIT, QUERY, ..., ROWS) of an operation, or null if it never ran.
+     */
+    public Histogram getHistogram(String operation, String metric) {
+        OperationHistograms histograms = operations.get(operation);
+        return histograms == null ? null : histograms.get(metric);
+    }
+
+    public long getFailures(String operation) {
+        OperationHistograms histograms = operations.get(operation);
+        return histograms == null ? 0 : histograms.failures.get();
+    }
+
+    public void reset() {
+        operations.clear();
+    }
+
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        try {
+            dump(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /*
+     * Times in microseconds, operations in alphabetical order.
+     */
+    public void dump(Appendable out) throws IOException {
+        String format = "%-10s %10s %12s %12s %12s %12s %12s%n";
+        for (Map.Entry<String, OperationHistograms> entry : new TreeMap<>(operations).entrySet()) {
+            OperationHistograms histograms = entry.getValue();
+            out.append(String.format("%s: %d operations, %d failed%n", entry.getKey(), histograms.total.getCount(), histograms.failures.get()));
+            out.append(String.format(format, "", "mean", "p50", "p90", "p99", "p99.9", "max"));
+            for (String metric : new String[]{CONNECTION_WAIT, QUERY, MAPPING, ASSEMBLY, TOTAL}) {
+                Histogram histogram = histograms.get(metric);
+                out.append(String.format(format, metric, micros(histogram.getMean()),
+                        micros(histogram.getPercentile(50)), micros(histogram.getPercentile(90)),
+                        micros(histogram.getPercentile(99)), micros(histogram.getPercentile(99.9)),
+                        micros(histogram.getMax())));
+            }
+            Histogram rows = histograms.rows;
+            out.append(String.format(format, ROWS, String.format("%.1f", rows.getMean()),
+                    rows.getPercentile(50), rows.getPercentile(90), rows.getPercentile(99), rows.getPercentile(99.9),
+                    rows.getMax()));
+        }
+    }
+
+    private static String micros(double nanos) {
+        return String.format("%.1f", nanos / 1000);
+    }
+
+    private static final class OperationHistograms {
+
+        private final Histogram connectionWait = new Histogram();
+        private final Histogram query = new Histogram();
+        private final Histogram mapping = new Histogram();
+        private final Histogram assembly = new Histogram();
+        private final Histogram total = new Histogram();
+        private final Histogram rows = new Histogram();
+        private final AtomicLong failures = new AtomicLong();
+
+        private void record(OperationMetrics metrics) {
+            connectionWait.record(metrics.getConnectionWaitNanos());
+            query.record(metrics.getQueryNanos());
+            mapping.record(metrics.getMappingNanos());
+            assembly.record(metrics.getAssemblyNanos());
+            total.record(metrics.getTotalNanos());
+            rows.record(metrics.getRows());
+            if (metrics.isFailed()) {
+                failures.incrementAndGet();
+            }
+        }
+
+        private Histogram get(String metric) {
+            switch (metric) {
+                case CONNECTION_WAIT:
+                    return connectionWait;
+                case QUERY:
+                    return query;
+                case MAPPING:
+                    return mapping;
+                case ASSEMBLY:
+                    return assembly;
+                case TOTAL:
+                    return total;
+                case ROWS:
+                    return rows;
+                default:
+                    throw new IllegalArgumentException("Unknown metric " + metric);
+            }
+        }
+    }
+
+    /*
+     * Log-linear histogram of non-negative longs: exact below 16, then 8 buckets per power of two.
+     */
+    public static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(index(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            for (long current = max.get(); value > current && !max.compareAndSet(current, value); current = max.get()) {
+                // retry until the maximum is at least value
+            }
+        }
+
+        static int index(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long highestValue(int index) {
+            if (index < 2 * SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int shift = exponent - SUB_BUCKET_BITS;
+            long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) sum.get() / n;
+        }
+
+        /*
+         * The upper end of the bucket holding the given percentile, capped at the maximum.
+         */
+        public long getPercentile(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), getMax());
+                }
+            }
+            return getMax();
+        }
+    }
+}
@@ -1,91 +1,498 @@
 package com.github.mwedgwood.repository;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.github.mwedgwood.model.tree.ChildLoader;
+import com.github.mwedgwood.model.tree.CompactTree;
 import com.github.mwedgwood.model.tree.Node;
 import com.github.mwedgwood.model.tree.Tree;
+import com.github.mwedgwood.model.tree.TreeBuilder;
+import com.github.mwedgwood.util.JsonUtil;
+import com.google.common.base.Objects;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.SQLStatement;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.exceptions.CallbackFailedException;
 import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
 import org.skife.jdbi.v2.util.IntegerMapper;
 import org.skife.jdbi.v2.util.TypedMapper;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
 public class JdbcTreeRepositoryImpl implements TreeRepository {
 
     private static final String BASE_RECURSIVE_QUERY = "" +
-            "  WITH RECURSIVE children AS (\n" +
+            "  WITH RECURSIVE children (id, description, name, parent_id, children_order, depth) AS (\n" +
             "    SELECT t.id, t.description, t.name, t.parent_id, t.children_order, 1 AS depth\n" +
             "    FROM tree t\n" +
-            "    WHERE t.id = :id\n" +
+            "    WHERE t.id = %s\n" +
             "  UNION ALL\n" +
-            "    SELECT a.id, a.description, a.name, a.parent_id, a.children_order, depth+1\n" +
+            "    SELECT a.id, a.description, a.name, a.parent_id, a.children_order, b.depth+1\n" +
             "    FROM tree a\n" +
-            "    JOIN children b ON (a.parent_id = b.id)\n" +
+            "    JOIN children b ON (a.parent_id = b.id)%s\n" +
             ")\n";
 
-    private final DBI dbi;
+    // Depth first, siblings by children_order (nulls last) then id: each row carries the keys of its ancestors and its
+    // own, offset to be non-negative and padded to ten digits so they compare as strings
+    private static final String SORT_KEY = "lpad(CAST(coalesce(CAST(a.children_order AS bigint), 2147483648) + 2147483648 AS varchar), 10, '0') " +
+            "|| lpad(CAST(a.id AS varchar), 10, '0')";
+
+    private static final String DEPTH_FIRST_QUERY = "" +
+            "  WITH RECURSIVE children (id, description, name, parent_id, children_order, sort_key) AS (\n" +
+            "    SELECT t.id, t.description, t.name, t.parent_id, t.children_order, CAST('' AS varchar)\n" +
+            "    FROM tree t\n" +
+            "    WHERE t.id = %s\n" +
+            "  UNION ALL\n" +
+            "    SELECT a.id, a.description, a.name, a.parent_id, a.children_order, CAST(b.sort_key || " + SORT_KEY + " AS varchar)\n" +
+            "    FROM tree a\n" +
+            "    JOIN children b ON (a.parent_id = b.id)\n" +
+            ")\n" +
+            "SELECT t.id, t.name, t.description, t.parent_id, t.children_order\n" +
+            "FROM children t\n" +
+            "ORDER BY t.sort_key";
+
+    // Each row carries the id of the root it was reached from, so overlapping trees each get their own copy
+    private static final String FOREST_QUERY = "" +
+            "  WITH RECURSIVE children (root_id, id, description, name, parent_id, children_order, depth) AS (\n" +
+            "    SELECT t.id, t.id, t.description, t.name, t.parent_id, t.children_order, 1 AS depth\n" +
+            "    FROM tree t\n" +
+            "    WHERE t.id IN (%s)\n" +
+            "  UNION ALL\n" +
+            "    SELECT b.root_id, a.id, a.description, a.name, a.parent_id, a.children_order, b.depth+1\n" +
+            "    FROM tree a\n" +
+            "    JOIN children b ON (a.parent_id = b.id)%s\n" +
+            ")\n" +
+            "SELECT t.id, t.name, t.description, t.parent_id, t.children_order, t.root_id\n" +
+            "FROM children t\n";
+
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final int DEFAULT_FETCH_SIZE = 1000;
+
+    // Distance between the children_order keys of neighbouring siblings after they are renumbered
+    static final int ORDER_GAP = 1024;
+
+    private static final ResultSetMapper<Integer> NULLABLE_INTEGER = new ResultSetMapper<Integer>() {
+        @Override
+        public Integer map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+            int value = r.getInt(1);
+            return r.wasNull() ? null : value;
+        }
+    };
+
+    final DBI dbi;
+    final int batchSize;
+    private final int fetchSize;
+
+    private volatile String idSequence;
+    private volatile RepositoryListener listener;
 
     public JdbcTreeRepositoryImpl(DBI dbi) {
+        this(dbi, DEFAULT_BATCH_SIZE);
+    }
+
+    public JdbcTreeRepositoryImpl(DBI dbi, int batchSize) {
+        this(dbi, batchSize, DEFAULT_FETCH_SIZE);
+    }
+
+    public JdbcTreeRepositoryImpl(DBI dbi, int batchSize, int fetchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be positive");
+        if (fetchSize < 1) throw new IllegalArgumentException("fetchSize must be positive");
         this.dbi = dbi;
+        this.batchSize = batchSize;
+        this.fetchSize = fetchSize;
+    }
+
+    /*
+     * Reports the timings of every operation to the listener, or stops timing them when it is null.
+     */
+    public void setListener(RepositoryListener listener) {
+        this.listener = listener;
+    }
+
+    interface Operation<T> {
+
+        T run(Handle handle, OperationTimer timer) throws Exception;
+    }
+
+    <T> T inTransaction(String name, final Operation<T> operation) {
+        final OperationTimer timer = startOperation(name);
+        boolean failed = true;
+        try {
+            T result = dbi.inTransaction(new TransactionCallback<T>() {
+                @Override
+                public T inTransaction(Handle handle, TransactionStatus status) throws Exception {
+                    timer.connected();
+                    return operation.run(handle, timer);
+                }
+            });
+            failed = false;
+            return result;
+        } finally {
+            timer.finish(failed);
+        }
+    }
+
+    <T> T withHandle(String name, final Operation<T> operation) {
+        final OperationTimer timer = startOperation(name);
+        boolean failed = true;
+        try {
+            T result = dbi.withHandle(new HandleCallback<T>() {
+                @Override
+                public T withHandle(Handle handle) throws Exception {
+                    timer.connected();
+                    return operation.run(handle, timer);
+                }
+            });
+            failed = false;
+            return result;
+        } finally {
+            timer.finish(failed);
+        }
+    }
+
+    private OperationTimer startOperation(String name) {
+        RepositoryListener listener = this.listener;
+        return listener == null ? OperationTimer.DISABLED : new OperationTimer(name, listener);
     }
 
     @Override
     public Tree findEntireTree(final Integer rootId) {
-        return dbi.withHandle(new HandleCallback<Tree>() {
+        // PostgreSQL only honours the fetch size, and streams through a cursor, inside a transaction
+        return inTransaction("findEntireTree", new Operation<Tree>() {
             @Override
-            public Tree withHandle(Handle handle) throws Exception {
-                String sql = BASE_RECURSIVE_QUERY +
+            public Tree run(Handle handle, OperationTimer timer) throws Exception {
+                String sql = recursiveQuery(handle, rootId) +
                         "SELECT t.id, t.name, t.description, t.parent_id, t.children_order, 1 AS depth\n" +
                         "FROM children t\n";
 
-                List<Node> nodes = handle.createQuery(sql)
-                        .bind("id", rootId)
-                        .map(new NodeMapper())
-                        .list();
+                return assemble(handle.createQuery(sql)
+                        .bind("id", rootId), timer);
+            }
+        });
+    }
+
+    /*
+     * The tree as a CompactTree, each row copied into it as it is read, so no Tree is created even for huge trees. The
+     * rows are found by following parent_id, whatever the storage model.
+     */
+    public CompactTree findCompactTree(final Integer rootId) {
+        return inTransaction("findCompactTree", new Operation<CompactTree>() {
+            @Override
+            public CompactTree run(Handle handle, OperationTimer timer) throws Exception {
+                String sql = recursiveQuery(handle, rootId) +
+                        "SELECT t.id, t.name, t.description, t.parent_id, t.children_order, 1 AS depth\n" +
+                        "FROM children t\n";
 
-                return Tree.fromList(nodes);
+                ResultIterator<Node> nodes = handle.createQuery(sql)
+                        .bind("id", rootId)
+                        .setFetchSize(fetchSize)
+                        .map(timer.timeMapping(new NodeMapper()))
+                        .iterator();
+                try {
+                    CompactTree.Builder builder = new CompactTree.Builder();
+                    int rows = 0;
+                    long assembly = 0;
+                    while (nodes.hasNext()) {
+                        Node node = nodes.next();
+                        long before = timer.time();
+                        builder.add(node);
+                        assembly += timer.time() - before;
+                        rows++;
+                    }
+                    long before = timer.time();
+                    CompactTree tree = builder.build();
+                    timer.addAssembly(assembly + timer.time() - before);
+                    timer.addRows(rows);
+                    return tree;
+                } finally {
+                    nodes.close();
+                }
             }
         });
     }
 
     @Override
     public Tree findByIdForDepth(final Integer id, final Integer depth) {
-        return dbi.withHandle(new HandleCallback<Tree>() {
+        if (depth == null) {
+            return findEntireTree(id);
+        }
+        return inTransaction("findByIdForDepth", new Operation<Tree>() {
             @Override
-            public Tree withHandle(Handle handle) throws Exception {
-                String sql = BASE_RECURSIVE_QUERY +
+            public Tree run(Handle handle, OperationTimer timer) throws Exception {
+                String sql = recursiveQuery(handle, id, depth) +
                         "SELECT t.id, t.name, t.description, t.parent_id, t.children_order, 1 AS depth\n" +
-                        "FROM children t\n" +
-                        "WHERE depth <= :depth";
+                        "FROM children t\n";
 
-                List<Node> nodes = handle.createQuery(sql)
+                return assemble(handle.createQuery(sql)
                         .bind("id", id)
-                        .bind("depth", depth)
-                        .map(new NodeMapper())
-                        .list();
+                        .bind("depth", depth), timer);
+            }
+        });
+    }
+
+    @Override
+    public int exportJson(final Integer rootId, OutputStream out, boolean pretty) throws IOException {
+        final JsonGenerator generator = JsonUtil.createGenerator(out, pretty);
+        try {
+            return inTransaction("exportJson", new Operation<Integer>() {
+                @Override
+                public Integer run(Handle handle, OperationTimer timer) throws Exception {
+                    ResultIterator<Node> nodes = handle.createQuery(String.format(DEPTH_FIRST_QUERY, Dialect.of(handle).recursiveParameter("id", rootId)))
+                            .bind("id", rootId)
+                            .setFetchSize(fetchSize)
+                            .map(timer.timeMapping(new NodeMapper()))
+                            .iterator();
+                    try {
+                        int count = new JsonTreeWriter(generator).write(nodes);
+                        timer.addRows(count);
+                        return count;
+                    } finally {
+                        nodes.close();
+                    }
+                }
+            });
+        } catch (CallbackFailedException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        } finally {
+            generator.close();
+        }
+    }
+
+    @Override
+    public Tree findLazyTree(Integer id, int prefetchDepth) {
+        Tree tree = findById(id);
+        return tree == null ? null : Tree.lazy(tree.getNode(), new ChildLoader() {
+            @Override
+            public Map<Integer, List<Node>> loadChildren(List<Integer> parentIds) {
+                return fetchChildren(parentIds);
+            }
+        }, prefetchDepth);
+    }
+
+    /*
+     * The children of all the parents, in batches of batchSize parent ids, each list sorted as TreeBuilder sorts it.
+     */
+    private Map<Integer, List<Node>> fetchChildren(final List<Integer> parentIds) {
+        return withHandle("fetchChildren", new Operation<Map<Integer, List<Node>>>() {
+            @Override
+            public Map<Integer, List<Node>> run(Handle handle, OperationTimer timer) throws Exception {
+                Map<Integer, List<Node>> children = new HashMap<>();
+                int rows = 0;
+                for (int from = 0; from < parentIds.size(); from += batchSize) {
+                    List<Integer> batch = parentIds.subList(from, Math.min(from + batchSize, parentIds.size()));
+                    String sql = "SELECT t.id, t.name, t.description, t.parent_id, t.children_order\n" +
+                            "FROM tree t\n" +
+                            "WHERE t.parent_id IN (" + parameterList("id", batch.size()) + ")\n" +
+                            "ORDER BY t.parent_id, t.children_order NULLS LAST, t.id";
+
+                    ResultIterator<Node> nodes = bindList(handle.createQuery(sql), "id", batch)
+                            .setFetchSize(fetchSize)
+                            .map(timer.timeMapping(new NodeMapper()))
+                            .iterator();
+                    try {
+                        while (nodes.hasNext()) {
+                            Node node = nodes.next();
+                            List<Node> siblings = children.get(node.getParentId());
+                            if (siblings == null) {
+                                children.put(node.getParentId(), siblings = new ArrayList<>());
+                            }
+                            siblings.add(node);
+                            rows++;
+                        }
+                    } finally {
+                        nodes.close();
+                    }
+                }
+                timer.addRows(rows);
+                return children;
+            }
+        });
+    }
+
+    @Override
+    public RepositoryResult<Tree> findChildren(Integer parentId) {
+        Map<String, String> columns = new LinkedHashMap<>();
+        columns.put("order", "t.children_order");
+        columns.put("id", "t.id");
+        columns.put("name", "t.name");
 
-                return Tree.fromList(nodes);
+        return new RepositoryResultImpl<>(this, "findChildren",
+                "SELECT t.id, t.name, t.description, t.parent_id, t.children_order",
+                "tree t",
+                parentId == null ? "t.parent_id IS NULL" : "t.parent_id = :parentId",
+                Collections.singletonMap("parentId", parentId),
+                columns, "id", new ResultSetMapper<Tree>() {
+                    private final NodeMapper nodeMapper = new NodeMapper();
+
+                    @Override
+                    public Tree map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+                        return new Tree(nodeMapper.map(index, r, ctx));
+                    }
+                }, fetchSize, Order.asc("order"));
+    }
+
+    @Override
+    public Map<Integer, Tree> findEntireTrees(Collection<Integer> rootIds) {
+        return findTrees("findEntireTrees", rootIds, null);
+    }
+
+    @Override
+    public Map<Integer, Tree> findByIdsForDepth(Collection<Integer> ids, Integer depth) {
+        return findTrees("findByIdsForDepth", ids, depth);
+    }
+
+    /*
+     * One query per batchSize ids, in a single transaction, each row added to the builder of its root as it arrives.
+     */
+    private Map<Integer, Tree> findTrees(String name, Collection<Integer> ids, final Integer depth) {
+        final List<Integer> distinctIds = new ArrayList<>(new LinkedHashSet<>(ids));
+        distinctIds.remove(null);
+        if (distinctIds.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+
+        return inTransaction(name, new Operation<Map<Integer, Tree>>() {
+            @Override
+            public Map<Integer, Tree> run(Handle handle, OperationTimer timer) throws Exception {
+                Map<Integer, TreeBuilder> builders = new HashMap<>();
+                int rows = 0;
+                long assembly = 0;
+                for (int from = 0; from < distinctIds.size(); from += batchSize) {
+                    List<Integer> batch = distinctIds.subList(from, Math.min(from + batchSize, distinctIds.size()));
+                    ResultIterator<RootedNode> nodes = forestQuery(handle, batch, depth)
+                            .setFetchSize(fetchSize)
+                            .map(timer.timeMapping(new RootedNodeMapper()))
+                            .iterator();
+                    try {
+                        while (nodes.hasNext()) {
+                            RootedNode row = nodes.next();
+                            long before = timer.time();
+                            TreeBuilder builder = builders.get(row.rootId);
+                            if (builder == null) {
+                                builders.put(row.rootId, builder = new TreeBuilder());
+                            }
+                            builder.add(row.node);
+                            assembly += timer.time() - before;
+                            rows++;
+                        }
+                    } finally {
+                        nodes.close();
+                    }
+                }
+
+                long before = timer.time();
+                Map<Integer, Tree> trees = new LinkedHashMap<>();
+                for (Integer id : distinctIds) {
+                    TreeBuilder builder = builders.get(id);
+                    if (builder != null) {
+                        trees.put(id, builder.build());
+                    }
+                }
+                timer.addAssembly(assembly + timer.time() - before);
+                timer.addRows(rows);
+                return trees;
             }
         });
     }
 
+    /*
+     * The nodes of the trees below the ids, limited to depth levels unless it is null, as the five NodeMapper columns
+     * followed by the root_id they belong to.
+     */
+    Query<Map<String, Object>> forestQuery(Handle handle, List<Integer> ids, Integer depth) {
+        Dialect dialect = Dialect.of(handle);
+        StringBuilder idList = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            idList.append(i == 0 ? "" : ", ").append(dialect.recursiveParameter("id" + i, ids.get(i)));
+        }
+
+        String sql = String.format(FOREST_QUERY, idList, depthBound(dialect, depth));
+        Query<Map<String, Object>> query = bindList(handle.createQuery(sql), "id", ids);
+        return depth == null ? query : query.bind("depth", depth);
+    }
+
+    private static String recursiveQuery(Handle handle, Integer id) {
+        return recursiveQuery(handle, id, null);
+    }
+
+    private static String recursiveQuery(Handle handle, Integer id, Integer depth) {
+        Dialect dialect = Dialect.of(handle);
+        return String.format(BASE_RECURSIVE_QUERY, dialect.recursiveParameter("id", id), depthBound(dialect, depth));
+    }
+
+    /*
+     * Stops the recursion at the depth, rather than filtering the rows of whole subtrees afterwards.
+     */
+    private static String depthBound(Dialect dialect, Integer depth) {
+        return depth == null ? "" : "\n    WHERE b.depth < " + dialect.recursiveParameter("depth", depth);
+    }
+
+    Tree assemble(Query<Map<String, Object>> query, OperationTimer timer) {
+        ResultIterator<Node> nodes = query
+                .setFetchSize(fetchSize)
+                .map(timer.timeMapping(new NodeMapper()))
+                .iterator();
+        try {
+            TreeBuilder builder = new TreeBuilder();
+            int rows = 0;
+            long assembly = 0;
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                long before = timer.time();
+                builder.add(node);
+                assembly += timer.time() - before;
+                rows++;
+            }
+            long before = timer.time();
+            Tree tree = builder.build();
+            timer.addAssembly(assembly + timer.time() - before);
+            timer.addRows(rows);
+            return tree;
+        } finally {
+            nodes.close();
+        }
+    }
+
     @Override
     public Tree findById(final Integer id) {
-        return dbi.withHandle(new HandleCallback<Tree>() {
+        return withHandle("findById", new Operation<Tree>() {
             @Override
-            public Tree withHandle(Handle handle) throws Exception {
+            public Tree run(Handle handle, OperationTimer timer) throws Exception {
                 String sql = "SELECT t.id, t.name, t.description, t.parent_id, t.children_order, 1 AS depth\n" +
                         "FROM tree t\n" +
                         "WHERE t.id = :id";
 
                 List<Node> nodes = handle.createQuery(sql)
                         .bind("id", id)
-                        .map(new NodeMapper())
+                        .map(timer.timeMapping(new NodeMapper()))
                         .list();
+                timer.addRows(nodes.size());
 
-                return Tree.fromList(nodes);
+                long before = timer.time();
+                Tree tree = Tree.fromList(nodes);
+                timer.addAssembly(timer.time() - before);
+                return tree;
             }
         });
     }
@@ -97,68 +504,589 @@ public class JdbcTreeRepositoryImpl implements TreeRepository {
 
     @Override
     public void save(final Tree entity) {
-        dbi.withHandle(new HandleCallback<Object>() {
+        inTransaction("save", new Operation<Object>() {
             @Override
-            public Object withHandle(Handle handle) throws Exception {
-                save(entity, handle);
+            public Object run(Handle handle, OperationTimer timer) throws Exception {
+                timer.addRows(save(entity, handle));
                 return null;
             }
         });
     }
 
-    void save(Tree entity, Handle handle) {
-        Node node = entity.getNode();
+    /*
+     * Saves the whole tree with one id allocation query per block of nodes and one JDBC batch per level, so the
+     * number of round trips depends on the batch size and the depth of the tree rather than on the number of nodes.
+     */
+    int save(Tree entity, Handle handle) throws SQLException {
+        return write(entity, handle, createSaveWriter(handle), new IdRange());
+    }
 
-        Integer parentId = node.getParentId() == null && entity.getParent() != null ?
-                entity.getParent().getNode().getId() :
-                node.getParentId();
+    /*
+     * Writes the rows of save(), parents before their children.
+     */
+    NodeWriter createSaveWriter(Handle handle) {
+        return new BatchNodeWriter(handle, batchSize);
+    }
 
-        Integer id = handle.createStatement("insert into tree (name, description, parent_id, children_order) values (:name, :description, :parentId, :childrenOrder)")
-                .bind("name", node.getName())
-                .bind("description", node.getDescription())
-                .bind("parentId", parentId)
-                .bind("childrenOrder", node.getOrder())
-                .executeAndReturnGeneratedKeys(IntegerMapper.FIRST).first();
+    @Override
+    public int bulkLoad(final Tree tree) {
+        return inTransaction("bulkLoad", new Operation<Integer>() {
+            @Override
+            public Integer run(Handle handle, OperationTimer timer) throws Exception {
+                int count = bulkLoad(tree, handle);
+                timer.addRows(count);
+                return count;
+            }
+        });
+    }
+
+    int bulkLoad(Tree tree, Handle handle) throws SQLException {
+        IdRange loaded = new IdRange();
+        int count = write(tree, handle, createBulkWriter(handle), loaded);
+        if (count > 0) {
+            bulkLoaded(handle, loaded);
+        }
+        return count;
+    }
+
+    @Override
+    public int bulkLoad(final Iterator<? extends Node> nodes) {
+        return inTransaction("bulkLoad", new Operation<Integer>() {
+            @Override
+            public Integer run(Handle handle, OperationTimer timer) throws Exception {
+                int count = bulkLoad(nodes, handle);
+                timer.addRows(count);
+                return count;
+            }
+        });
+    }
+
+    int bulkLoad(Iterator<? extends Node> nodes, Handle handle) throws SQLException {
+        IdRange loaded = new IdRange();
+        int count = write(nodes, handle, createBulkWriter(handle), loaded);
+        if (count > 0) {
+            bulkLoaded(handle, loaded);
+        }
+        return count;
+    }
+
+    /*
+     * Called in the transaction of a bulk load once its rows are written, so storage models can fill in their own
+     * columns and tables for just those rows. Every row written has an id in the range, which may also hold ids
+     * other transactions took from the sequence in the meantime.
+     */
+    void bulkLoaded(Handle handle, IdRange loaded) throws SQLException {
+    }
+
+    private NodeWriter createBulkWriter(Handle handle) throws SQLException {
+        return CopyNodeWriter.isSupported(handle.getConnection()) ?
+                new CopyNodeWriter(handle.getConnection(), batchSize) :
+                new BatchNodeWriter(handle, batchSize);
+    }
+
+    private int write(Tree entity, Handle handle, NodeWriter writer, IdRange written) throws SQLException {
+        List<List<Tree>> levels = levels(entity);
+
+        int count = 0;
+        for (List<Tree> level : levels) {
+            count += level.size();
+        }
+        Iterator<Integer> ids = allocateIds(handle, count).iterator();
+
+        for (List<Tree> level : levels) {
+            for (Tree tree : level) {
+                Node node = tree.getNode();
+                node.setId(ids.next());
+                written.add(node.getId());
+
+                if (tree != entity) {
+                    node.setParentId(tree.getParent().getId());
+                } else if (node.getParentId() == null && tree.getParent() != null) {
+                    node.setParentId(tree.getParent().getId());
+                }
+            }
+        }
+        entity.reindex();
+
+        try {
+            for (List<Tree> level : levels) {
+                for (Tree tree : level) {
+                    writer.write(tree.getNode());
+                }
+            }
+            writer.finish();
+        } catch (SQLException | RuntimeException e) {
+            writer.cancel();
+            throw e;
+        }
+        return count;
+    }
+
+    /*
+     * Nodes must arrive parents first. A node's incoming id is only used to resolve the parent id of the nodes that
+     * follow it; parent ids that don't refer to an earlier node are written unchanged.
+     */
+    private int write(Iterator<? extends Node> nodes, Handle handle, NodeWriter writer, IdRange written) throws SQLException {
+        Map<Integer, Integer> newIds = new HashMap<>();
+        Iterator<Integer> ids = Collections.emptyIterator();
+        int count = 0;
 
-        entity.getNode().setId(id);
+        try {
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                if (!ids.hasNext()) {
+                    ids = allocateIds(handle, batchSize).iterator();
+                }
+                Integer id = ids.next();
+                written.add(id);
 
-        for (Tree child : entity.getChildren()) {
-            save(child, handle);
+                if (node.getId() != null) {
+                    newIds.put(node.getId(), id);
+                }
+                Integer parentId = node.getParentId() == null ? null : newIds.get(node.getParentId());
+                if (parentId != null) {
+                    node.setParentId(parentId);
+                }
+
+                writer.write(node.setId(id));
+                count++;
+            }
+            writer.finish();
+        } catch (SQLException | RuntimeException e) {
+            writer.cancel();
+            throw e;
+        }
+        return count;
+    }
+
+    static List<List<Tree>> levels(Tree entity) {
+        List<List<Tree>> levels = new ArrayList<>();
+        for (List<Tree> level = Collections.singletonList(entity); !level.isEmpty(); ) {
+            levels.add(level);
+            List<Tree> next = new ArrayList<>();
+            for (Tree tree : level) {
+                next.addAll(tree.getChildren());
+            }
+            level = next;
         }
+        return levels;
+    }
+
+    private List<Integer> allocateIds(Handle handle, int count) {
+        String sql = Dialect.of(handle).nextValuesQuery(idSequence(handle), "count");
+
+        List<Integer> ids = new ArrayList<>(count);
+        for (int allocated = 0; allocated < count; allocated += batchSize) {
+            ids.addAll(handle.createQuery(sql)
+                    .bind("count", Math.min(batchSize, count - allocated))
+                    .map(IntegerMapper.FIRST)
+                    .list());
+        }
+        return ids;
+    }
+
+    private String idSequence(Handle handle) {
+        if (idSequence == null) {
+            String sequence = Dialect.of(handle).findSequenceName(handle, "tree", "id");
+            if (sequence == null) throw new IllegalStateException("No sequence found for tree.id");
+            idSequence = sequence;
+        }
+        return idSequence;
     }
 
     @Override
     public void delete(final Tree entity) {
-        dbi.withHandle(new HandleCallback<Object>() {
+        withHandle("delete", new Operation<Object>() {
             @Override
-            public Object withHandle(Handle handle) throws Exception {
-                handle.createStatement("delete from tree where id = :id")
+            public Object run(Handle handle, OperationTimer timer) throws Exception {
+                timer.addRows(handle.createStatement("delete from tree where id = :id")
                         .bind("id", entity.getNode().getId())
-                        .execute();
+                        .execute());
                 return null;
             }
         });
     }
 
+    @Override
+    public int deleteSubtree(final Integer id) {
+        return inTransaction("deleteSubtree", new Operation<Integer>() {
+            @Override
+            public Integer run(Handle handle, OperationTimer timer) throws Exception {
+                int deleted = deleteSubtree(handle, id);
+                timer.addRows(deleted);
+                return deleted;
+            }
+        });
+    }
+
+    /*
+     * Deletes the ids of the subtree, deepest first, chunkSize rows per transaction, so readers never wait long on
+     * locks and never see a node without its parent. Descendants added while this runs are picked up by another pass.
+     */
+    @Override
+    public int deleteSubtree(final Integer id, final int chunkSize) {
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive");
+
+        int deleted = 0;
+        for (List<Integer> ids = subtreeIds(id); !ids.isEmpty(); ids = subtreeIds(id)) {
+            for (int from = 0; from < ids.size(); from += chunkSize) {
+                final List<Integer> chunk = ids.subList(from, Math.min(from + chunkSize, ids.size()));
+                deleted += inTransaction("deleteSubtreeChunk", new Operation<Integer>() {
+                    @Override
+                    public Integer run(Handle handle, OperationTimer timer) throws Exception {
+                        int deleted = deleteRows(handle, chunk);
+                        timer.addRows(deleted);
+                        return deleted;
+                    }
+                });
+            }
+        }
+        return deleted;
+    }
+
+    private List<Integer> subtreeIds(final Integer id) {
+        return dbi.withHandle(new HandleCallback<List<Integer>>() {
+            @Override
+            public List<Integer> withHandle(Handle handle) throws Exception {
+                return subtreeIds(handle, id);
+            }
+        });
+    }
+
+    /*
+     * A single recursive statement where the database allows it; H2 1.4 only accepts WITH in front of a SELECT, so
+     * there the ids are selected first.
+     */
+    int deleteSubtree(Handle handle, Integer id) {
+        if (!Dialect.of(handle).supportsDeleteWithCommonTableExpression()) {
+            return deleteRows(handle, subtreeIds(handle, id));
+        }
+        return handle.createStatement(recursiveQuery(handle, id) + "DELETE FROM tree WHERE id IN (SELECT id FROM children)")
+                .bind("id", id)
+                .execute();
+    }
+
+    /*
+     * The ids of the node and its descendants, deepest first.
+     */
+    List<Integer> subtreeIds(Handle handle, Integer id) {
+        return handle.createQuery(recursiveQuery(handle, id) + "SELECT id FROM children ORDER BY depth DESC")
+                .bind("id", id)
+                .map(IntegerMapper.FIRST)
+                .list();
+    }
+
+    int deleteRows(Handle handle, List<Integer> ids) {
+        int deleted = 0;
+        for (int from = 0; from < ids.size(); from += batchSize) {
+            List<Integer> chunk = ids.subList(from, Math.min(from + batchSize, ids.size()));
+            deleted += bindList(handle.createStatement("DELETE FROM tree WHERE id IN (" + parameterList("id", chunk.size()) + ")"), "id", chunk)
+                    .execute();
+        }
+        return deleted;
+    }
+
+    /*
+     * ":name0, :name1, ..." for binding a list of values with bindList.
+     */
+    static String parameterList(String name, int size) {
+        StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            parameters.append(i == 0 ? ":" : ", :").append(name).append(i);
+        }
+        return parameters.toString();
+    }
+
+    static <T extends SQLStatement<T>> T bindList(T statement, String name, List<?> values) {
+        for (int i = 0; i < values.size(); i++) {
+            statement.bind(name + i, values.get(i));
+        }
+        return statement;
+    }
+
+    // Binds :minId and :maxId, unless the range is null
+    static <T extends SQLStatement<T>> T bindRange(T statement, IdRange ids) {
+        return ids == null ? statement : statement.bind("minId", ids.min).bind("maxId", ids.max);
+    }
+
     @Override
     public void update(final Tree entity) {
-        dbi.withHandle(new HandleCallback<Object>() {
+        inTransaction("update", new Operation<Object>() {
+            @Override
+            public Object run(Handle handle, OperationTimer timer) throws Exception {
+                Node node = entity.getNode();
+                Integer previousParentId = handle.createQuery("select parent_id from tree where id = :id")
+                        .bind("id", node.getId())
+                        .map(IntegerMapper.FIRST)
+                        .first();
+
+                timer.addRows(update(handle, Collections.singletonList(node), Collections.singletonMap(node.getId(), parentId(previousParentId))));
+                return null;
+            }
+        });
+    }
+
+    /*
+     * Starts a unit of work that tracks the trees it loads and writes back only the nodes that changed.
+     */
+    public TreeSession openSession() {
+        return new TreeSession(this);
+    }
+
+    int update(final List<Node> nodes, final Map<Integer, Integer> previousParentIds) {
+        return inTransaction("flush", new Operation<Integer>() {
+            @Override
+            public Integer run(Handle handle, OperationTimer timer) throws Exception {
+                int count = update(handle, nodes, previousParentIds);
+                timer.addRows(count);
+                return count;
+            }
+        });
+    }
+
+    /*
+     * Writes the nodes' own columns in JDBC batches, then lets the storage model follow the nodes whose parent id
+     * differs from the one given for them in previousParentIds.
+     */
+    int update(Handle handle, List<Node> nodes, Map<Integer, Integer> previousParentIds) {
+        PreparedBatch batch = handle.prepareBatch("update tree set name = :name, description = :description, parent_id = :parentId, children_order = :order where id = :id");
+        List<Node> moved = new ArrayList<>();
+
+        for (Node node : nodes) {
+            batch.add()
+                    .bind("id", node.getId())
+                    .bind("name", node.getName())
+                    .bind("description", node.getDescription())
+                    .bind("parentId", parentId(node))
+                    .bind("order", node.getOrder());
+            if (batch.getSize() >= batchSize) {
+                batch.execute();
+            }
+
+            if (!Objects.equal(parentId(node), previousParentIds.get(node.getId()))) {
+                moved.add(node);
+            }
+        }
+        if (batch.getSize() > 0) {
+            batch.execute();
+        }
+
+        if (!moved.isEmpty()) {
+            moved(handle, moved);
+        }
+        return nodes.size();
+    }
+
+    /*
+     * Called with the nodes whose parent changed, after their rows were written. The adjacency list has nothing
+     * else to maintain.
+     */
+    void moved(Handle handle, List<Node> nodes) {
+    }
+
+    /*
+     * Called when move() changed the position of a node among its siblings, after its row was written; the parent id
+     * is null for a root. Updates that change an order without changing the parent don't call it.
+     */
+    void reordered(Handle handle, Integer parentId) {
+    }
+
+    @Override
+    public boolean move(final Integer nodeId, final Integer newParentId, final int position) {
+        if (position < 0) throw new IllegalArgumentException("position must not be negative");
+        return inTransaction("move", new Operation<Boolean>() {
             @Override
-            public Object withHandle(Handle handle) throws Exception {
-                final Node node = entity.getNode();
+            public Boolean run(Handle handle, OperationTimer timer) throws Exception {
+                timer.addRows(1);
+                return move(handle, nodeId, parentId(newParentId), position);
+            }
+        });
+    }
 
-                handle.createStatement("update tree set name = :name, description = :description, parent_id = :parentId, children_order = :order")
-                        .bind("name", node.getName())
-                        .bind("description", node.getDescription())
-                        .bind("parentId", node.getParentId())
-                        .bind("order", node.getOrder())
-                        .execute();
+    /*
+     * Children are ordered by sparse keys, so a move normally writes only the moved row: its new key lies halfway
+     * between the keys of its new neighbours. Only when they are adjacent are the parent's children renumbered first,
+     * which is returned.
+     */
+    private boolean move(Handle handle, Integer id, Integer parentId, int position) {
+        List<Integer> previous = handle.createQuery("select parent_id from tree where id = :id")
+                .bind("id", id)
+                .map(NULLABLE_INTEGER)
+                .list();
+        if (previous.isEmpty()) throw new IllegalArgumentException("No node with id " + id);
+        Integer previousParentId = parentId(previous.get(0));
 
+        boolean parentChanged = !Objects.equal(parentId, previousParentId);
+        if (parentChanged && parentId != null && isAncestorOrSelf(handle, id, parentId)) {
+            throw new IllegalArgumentException("Can not move node " + id + " below its own descendant " + parentId);
+        }
+
+        Integer order = orderKey(handle, id, parentId, position);
+        boolean renumbered = order == null;
+        if (renumbered) {
+            renumberChildren(handle, parentId);
+            order = orderKey(handle, id, parentId, position);
+            if (order == null) throw new IllegalStateException("No room for another child of " + parentId);
+        }
+
+        handle.createStatement("update tree set parent_id = :parentId, children_order = :order where id = :id")
+                .bind("id", id)
+                .bind("parentId", parentId)
+                .bind("order", order)
+                .execute();
+
+        if (parentChanged) {
+            moved(handle, Collections.singletonList(new Node().setId(id).setParentId(parentId)));
+        } else {
+            reordered(handle, parentId);
+        }
+        return renumbered;
+    }
+
+    private boolean isAncestorOrSelf(Handle handle, Integer id, Integer descendantId) {
+        String sql = "WITH RECURSIVE ancestors (id, parent_id) AS (\n" +
+                "    SELECT t.id, t.parent_id FROM tree t WHERE t.id = " + Dialect.of(handle).recursiveParameter("descendantId", descendantId) + "\n" +
+                "  UNION ALL\n" +
+                "    SELECT t.id, t.parent_id FROM tree t JOIN ancestors a ON (t.id = a.parent_id)\n" +
+                ")\n" +
+                "SELECT count(*) FROM ancestors WHERE id = :id";
+
+        return handle.createQuery(sql)
+                .bind("id", id)
+                .bind("descendantId", descendantId)
+                .map(IntegerMapper.FIRST)
+                .first() > 0;
+    }
+
+    /*
+     * The key for the node at the position among the children of the parent, or null when its neighbours have no room
+     * between them.
+     */
+    private Integer orderKey(Handle handle, Integer id, Integer parentId, int position) {
+        // The keys of the siblings that will end up before and after the node, null meaning there is none
+        List<Integer> keys = handle.createQuery("select t.children_order from tree t where " + siblings(parentId, "t") + " and t.id <> :id\n" +
+                "order by t.children_order nulls last, t.id limit :limit offset :offset")
+                .bind("parentId", parentId)
+                .bind("id", id)
+                .bind("limit", position == 0 ? 1 : 2)
+                .bind("offset", Math.max(position - 1, 0))
+                .map(NULLABLE_INTEGER)
+                .list();
+
+        boolean hasBefore = position > 0;
+        if (hasBefore && keys.isEmpty()) {
+            // Past the end, so after the last child if there is one
+            keys = handle.createQuery("select t.children_order from tree t where " + siblings(parentId, "t") + " and t.id <> :id\n" +
+                    "order by t.children_order desc nulls first, t.id desc limit 1")
+                    .bind("parentId", parentId)
+                    .bind("id", id)
+                    .map(NULLABLE_INTEGER)
+                    .list();
+            hasBefore = !keys.isEmpty();
+        }
+
+        int afterIndex = hasBefore ? 1 : 0;
+        boolean hasAfter = keys.size() > afterIndex;
+        if (!(hasBefore && keys.get(0) == null) && !(hasAfter && keys.get(afterIndex) == null)) {
+            Long key = orderKey(hasBefore ? keys.get(0) : null, hasAfter ? keys.get(afterIndex) : null);
+            if (key != null) {
+                return key.intValue();
+            }
+        }
+        return null;
+    }
+
+    /*
+     * A key strictly between the two, or null when there is none in the int range.
+     */
+    static Long orderKey(Integer before, Integer after) {
+        long key;
+        if (before == null) {
+            key = after == null ? ORDER_GAP : (long) after - ORDER_GAP;
+        } else if (after == null) {
+            key = (long) before + ORDER_GAP;
+        } else if ((long) after - before > 1) {
+            key = before + ((long) after - before) / 2;
+        } else {
+            return null;
+        }
+        return key < Integer.MIN_VALUE || key > Integer.MAX_VALUE ? null : key;
+    }
+
+    /*
+     * Respaces the children of the node, or the roots when it is null, ORDER_GAP apart in one statement. Moves do this themselves when a gap runs
+     * out; calling it ahead of a series of moves into the same parent keeps them to single row writes.
+     */
+    public void renumberChildren(final Integer parentId) {
+        inTransaction("renumberChildren", new Operation<Object>() {
+            @Override
+            public Object run(Handle handle, OperationTimer timer) throws Exception {
+                timer.addRows(renumberChildren(handle, parentId));
                 return null;
             }
         });
     }
 
+    private int renumberChildren(Handle handle, Integer parentId) {
+        return handle.createStatement(Dialect.of(handle).renumberChildrenStatement(siblings(parentId, "%s"), "gap"))
+                .bind("parentId", parentId)
+                .bind("gap", ORDER_GAP)
+                .execute();
+    }
+
+    /*
+     * Matches the children of the parent bound as :parentId, or the roots when it is null, in the table aliased as alias.
+     */
+    static String siblings(Integer parentId, String alias) {
+        return alias + (parentId == null ? ".parent_id IS NULL" : ".parent_id = :parentId");
+    }
+
+    static Integer parentId(Node node) {
+        return parentId(node.getParentId());
+    }
+
+    /*
+     * 0 and null both mean no parent.
+     */
+    static Integer parentId(Integer parentId) {
+        return parentId == null || parentId == 0 ? null : parentId;
+    }
+
+    /*
+     * The smallest and largest of a set of ids.
+     */
+    static final class IdRange {
+
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+
+        void add(int id) {
+            min = Math.min(min, id);
+            max = Math.max(max, id);
+        }
+    }
+
+    static final class RootedNode {
+
+        final int rootId;
+        final Node node;
+
+        RootedNode(int rootId, Node node) {
+            this.rootId = rootId;
+            this.node = node;
+        }
+    }
+
+    static class RootedNodeMapper implements ResultSetMapper<RootedNode> {
+
+        private final NodeMapper nodeMapper = new NodeMapper();
+
+        @Override
+        public RootedNode map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+            return new RootedNode(r.getInt("root_id"), nodeMapper.map(index, r, ctx));
+        }
+    }
+
     public static class NodeMapper extends TypedMapper<Node> {
 
         @Override
@@ -0,0 +1,89 @@
+package com.github.mwedgwood.repository;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.github.mwedgwood.model.tree.Node;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/*
+ * Writes nodes arriving in depth first order, siblings sorted, as the nested JSON JsonUtil.toJson produces for the
+ * Tree they make up. A node's children come before its own fields in that shape, so only the nodes on the path from
+ * the root to the current one are held, until their last child has been written.
+ */
+class JsonTreeWriter {
+
+    private final JsonGenerator generator;
+    private final Deque<Open> path = new ArrayDeque<>();
+
+    JsonTreeWriter(JsonGenerator generator) {
+        this.generator = generator;
+    }
+
+    /*
+     * Writes the tree rooted at the first node, or null when there are no nodes, and returns the number written.
+     */
+    int write(Iterator<Node> nodes) throws IOException {
+        int count = 0;
+        while (nodes.hasNext()) {
+            Node node = nodes.next();
+            if (count > 0) {
+                while (!path.isEmpty() && !path.peek().node.getId().equals(node.getParentId())) {
+                    close(path.pop());
+                }
+                if (path.isEmpty()) {
+                    throw new IllegalStateException("Node " + node.getId() + " is not in the subtree being written");
+                }
+            }
+            open(node);
+            count++;
+        }
+
+        if (count == 0) {
+            generator.writeNull();
+        }
+        while (!path.isEmpty()) {
+            close(path.pop());
+        }
+        generator.flush();
+        return count;
+    }
+
+    private void open(Node node) throws IOException {
+        Open parent = path.peek();
+        String level = "";
+        if (parent != null) {
+            parent.children++;
+            level = parent.level.isEmpty() ? String.valueOf(parent.children) : parent.level + "." + parent.children;
+        }
+        path.push(new Open(node, level, path.size()));
+
+        generator.writeStartObject();
+        generator.writeArrayFieldStart("children");
+    }
+
+    private void close(Open open) throws IOException {
+        generator.writeEndArray();
+        generator.writeObjectField("node", open.node);
+        generator.writeObjectField("id", open.node.getId());
+        generator.writeStringField("level", open.level);
+        generator.writeNumberField("depth", open.depth);
+        generator.writeEndObject();
+    }
+
+    private static final class Open {
+
+        private final Node node;
+        private final String level;
+        private final int depth;
+        private int children;
+
+        private Open(Node node, String level, int depth) {
+            this.node = node;
+            this.level = level;
+            this.depth = depth;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatchPart;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.util.IntegerMapper;
+import org.skife.jdbi.v2.util.StringMapper;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Stores the ids of every node's ancestors, and its own, in a path column made of fixed width segments
+ * ("0000000001/0000000007/"), so a subtree is an index range scan on the path prefix that already comes back in
+ * pre-order:
+ *
+ *   ALTER TABLE tree ADD COLUMN path character varying COLLATE "C"   -- PostgreSQL; H2 needs no COLLATE
+ *   CREATE INDEX tree_path ON tree (path)
+ *
+ * The C collation lets the one index serve both LIKE 'prefix%' and the range comparisons, path >= prefix AND
+ * path < prefix || '~', used where the prefix comes from another row and so isn't a constant pattern.
+ *
+ * The parent_id column is still maintained, so the adjacency list reads inherited from JdbcTreeRepositoryImpl remain
+ * valid.
+ */
+public class MaterializedPathTreeRepositoryImpl extends JdbcTreeRepositoryImpl {
+
+    static final int SEGMENT_WIDTH = 10;
+    static final String SEPARATOR = "/";
+
+    private static final String SEGMENT_SQL = "lpad(cast(t.id AS varchar), " + SEGMENT_WIDTH + ", '0') || '" + SEPARATOR + "'";
+
+    public MaterializedPathTreeRepositoryImpl(DBI dbi) {
+        super(dbi);
+    }
+
+    public MaterializedPathTreeRepositoryImpl(DBI dbi, int batchSize, int fetchSize) {
+        super(dbi, batchSize, fetchSize);
+    }
+
+    static String segment(Integer id) {
+        String digits = String.valueOf(id);
+        StringBuilder segment = new StringBuilder(SEGMENT_WIDTH + SEPARATOR.length());
+        for (int i = digits.length(); i < SEGMENT_WIDTH; i++) {
+            segment.append('0');
+        }
+        return segment.append(digits).append(SEPARATOR).toString();
+    }
+
+    @Override
+    public Tree findEntireTree(final Integer rootId) {
+        return inTransaction("findEntireTree", new Operation<Tree>() {
+            @Override
+            public Tree run(Handle handle, OperationTimer timer) throws Exception {
+                String path = findPath(handle, rootId);
+                if (path == null) {
+                    return null;
+                }
+
+                String sql = "SELECT t.id, t.name, t.description, t.parent_id, t.children_order\n" +
+                        "FROM tree t\n" +
+                        "WHERE t.path LIKE :prefix\n" +
+                        "ORDER BY t.path";
+
+                return assemble(handle.createQuery(sql)
+                        .bind("prefix", path + "%"), timer);
+            }
+        });
+    }
+
+    @Override
+    public Tree findByIdForDepth(final Integer id, final Integer depth) {
+        return inTransaction("findByIdForDepth", new Operation<Tree>() {
+            @Override
+            public Tree run(Handle handle, OperationTimer timer) throws Exception {
+                String path = findPath(handle, id);
+                if (path == null) {
+                    return null;
+                }
+
+                // Without a depth, the whole subtree, as findEntireTree gives it
+                String sql = "SELECT t.id, t.name, t.description, t.parent_id, t.children_order\n" +
+                        "FROM tree t\n" +
+                        "WHERE t.path LIKE :prefix" + (depth == null ? "" : " AND length(t.path) <= :maxLength") + "\n" +
+                        "ORDER BY t.path";
+
+                Query<Map<String, Object>> query = handle.createQuery(sql)
+                        .bind("prefix", path + "%");
+                if (depth != null) {
+                    query.bind("maxLength", path.length() + (depth - 1) * (SEGMENT_WIDTH + SEPARATOR.length()));
+                }
+                return assemble(query, timer);
+            }
+        });
+    }
+
+    @Override
+    Query<Map<String, Object>> forestQuery(Handle handle, List<Integer> ids, Integer depth) {
+        String sql = "SELECT t.id, t.name, t.description, t.parent_id, t.children_order, r.id AS root_id\n" +
+                "FROM tree r\n" +
+                "JOIN tree t ON (t.path >= r.path AND t.path < r.path || '~')\n" +
+                "WHERE r.id IN (" + parameterList("id", ids.size()) + ")" +
+                (depth == null ? "" : " AND length(t.path) <= length(r.path) + (:depth - 1) * " + (SEGMENT_WIDTH + SEPARATOR.length())) +
+                "\nORDER BY t.path";
+
+        Query<Map<String, Object>> query = bindList(handle.createQuery(sql), "id", ids);
+        return depth == null ? query : query.bind("depth", depth);
+    }
+
+    private String findPath(Handle handle, Integer id) {
+        return handle.createQuery("select path from tree where id = :id")
+                .bind("id", id)
+                .map(StringMapper.FIRST)
+                .first();
+    }
+
+    /*
+     * Writes each path with its row. Parents come before their children, so only the path of the saved tree's parent
+     * has to be read.
+     */
+    @Override
+    NodeWriter createSaveWriter(final Handle handle) {
+        final Map<Integer, String> paths = new HashMap<>();
+        return new BatchNodeWriter(handle, batchSize, BatchNodeWriter.INSERT_SQL.replace(", children_order)", ", children_order, path)")
+                .replace(", :childrenOrder)", ", :childrenOrder, :path)")) {
+            @Override
+            void bind(PreparedBatchPart part, Node node) {
+                super.bind(part, node);
+                Integer parentId = parentId(node);
+                String parentPath = parentId == null ? "" : paths.get(parentId);
+                if (parentPath == null) {
+                    parentPath = findPath(handle, parentId);
+                    // A parent without a path, or without a row, makes the node a root, as fillMissingPaths() does
+                    parentPath = parentPath == null ? "" : parentPath;
+                }
+                String path = parentPath + segment(node.getId());
+                paths.put(node.getId(), path);
+                part.bind("path", path);
+            }
+        };
+    }
+
+    @Override
+    void bulkLoaded(Handle handle, IdRange loaded) {
+        fillMissingPaths(handle, loaded);
+    }
+
+    @Override
+    int deleteSubtree(Handle handle, Integer id) {
+        String path = findPath(handle, id);
+        if (path == null) {
+            return 0;
+        }
+        return handle.createStatement("DELETE FROM tree WHERE path LIKE :prefix")
+                .bind("prefix", path + "%")
+                .execute();
+    }
+
+    @Override
+    List<Integer> subtreeIds(Handle handle, Integer id) {
+        String path = findPath(handle, id);
+        if (path == null) {
+            return Collections.emptyList();
+        }
+        return handle.createQuery("SELECT id FROM tree WHERE path LIKE :prefix ORDER BY length(path) DESC")
+                .bind("prefix", path + "%")
+                .map(IntegerMapper.FIRST)
+                .list();
+    }
+
+    /*
+     * Rewrites the paths of each moved subtree in one statement.
+     */
+    @Override
+    void moved(Handle handle, List<Node> nodes) {
+        for (Node node : nodes) {
+            move(handle, node.getId(), parentId(node));
+        }
+    }
+
+    private void move(Handle handle, Integer id, Integer parentId) {
+        String oldPath = findPath(handle, id);
+        if (oldPath == null) throw new IllegalArgumentException("Node " + id + " has no path, rebuild() the paths first");
+        String parentPath = parentId == null ? "" : findPath(handle, parentId);
+        if (parentPath == null) throw new IllegalArgumentException("No node with id " + parentId);
+        if (parentPath.startsWith(oldPath)) throw new IllegalArgumentException("Can not move node " + id + " below its own descendant " + parentId);
+
+        handle.createStatement("update tree set path = :newPath || substring(path, :oldLength + 1) where path like :oldPrefix")
+                .bind("newPath", parentPath + segment(id))
+                .bind("oldLength", oldPath.length())
+                .bind("oldPrefix", oldPath + "%")
+                .execute();
+    }
+
+    /*
+     * Recomputes every path from the parent_id column, e.g. after rows were written to the tree table directly.
+     */
+    public void rebuild() {
+        inTransaction("rebuild", new Operation<Object>() {
+            @Override
+            public Object run(Handle handle, OperationTimer timer) throws Exception {
+                handle.execute("update tree set path = null");
+                fillMissingPaths(handle, null);
+                return null;
+            }
+        });
+    }
+
+    /*
+     * Sets the paths of rows that don't have one yet with one set-based statement per level of depth, looking only at
+     * the rows with ids in the range, or at every row when it is null. Rows whose parent doesn't exist are treated as
+     * roots.
+     */
+    private void fillMissingPaths(Handle handle, IdRange ids) {
+        String range = ids == null ? "" : "AND t.id BETWEEN :minId AND :maxId\n";
+        bindRange(handle.createStatement("UPDATE tree t SET path = " + SEGMENT_SQL + "\n" +
+                "WHERE t.path IS NULL\n" +
+                range +
+                "AND (t.parent_id IS NULL OR NOT EXISTS (SELECT 1 FROM tree p WHERE p.id = t.parent_id))"), ids)
+                .execute();
+
+        int updated;
+        do {
+            updated = bindRange(handle.createStatement("UPDATE tree t SET path = (SELECT p.path FROM tree p WHERE p.id = t.parent_id) || " + SEGMENT_SQL + "\n" +
+                    "WHERE t.path IS NULL\n" +
+                    range +
+                    "AND EXISTS (SELECT 1 FROM tree p WHERE p.id = t.parent_id AND p.path IS NOT NULL)"), ids)
+                    .execute();
+        } while (updated > 0);
+    }
+}
@@ -0,0 +1,563 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import com.google.common.base.Objects;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+import org.skife.jdbi.v2.util.IntegerMapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Read model for hierarchies that are read far more often than they change. Every row stores the pre-order interval
+ * of its subtree and its depth, so subtrees, leaves and descendant counts are single range predicates:
+ *
+ *   ALTER TABLE tree ADD COLUMN lft integer
+ *   ALTER TABLE tree ADD COLUMN rgt integer
+ *   ALTER TABLE tree ADD COLUMN depth integer
+ *   CREATE INDEX tree_nested_set ON tree (lft, rgt)
+ *
+ * Saving a tree shifts the intervals to its right to make room for it, and reordering siblings renumbers their parent's
+ * interval. Bulk loads and moves to another parent renumber just the trees they touch, shifting the intervals after a
+ * tree that grew. Deletes leave gaps in the numbering, so nothing reads sizes off rgt - lft. rebuild() renumbers the
+ * whole table, closing the gaps, and repairs numbering written by other means.
+ */
+public class NestedSetTreeRepositoryImpl extends JdbcTreeRepositoryImpl {
+
+    private static final String SELECT_SUBTREE = "SELECT t.id, t.name, t.description, t.parent_id, t.children_order\n" +
+            "FROM tree r\n" +
+            "JOIN tree t ON (t.lft BETWEEN r.lft AND r.rgt)\n" +
+            "WHERE r.id = :id";
+
+    public NestedSetTreeRepositoryImpl(DBI dbi) {
+        super(dbi);
+    }
+
+    public NestedSetTreeRepositoryImpl(DBI dbi, int batchSize, int fetchSize) {
+        super(dbi, batchSize, fetchSize);
+    }
+
+    @Override
+    public Tree findEntireTree(final Integer rootId) {
+        return inTransaction("findEntireTree", new Operation<Tree>() {
+            @Override
+            public Tree run(Handle handle, OperationTimer timer) throws Exception {
+                return assemble(handle.createQuery(SELECT_SUBTREE + "\nORDER BY t.lft")
+                        .bind("id", rootId), timer);
+            }
+        });
+    }
+
+    @Override
+    public Tree findByIdForDepth(final Integer id, final Integer depth) {
+        if (depth == null) {
+            return findEntireTree(id);
+        }
+        return inTransaction("findByIdForDepth", new Operation<Tree>() {
+            @Override
+            public Tree run(Handle handle, OperationTimer timer) throws Exception {
+                return assemble(handle.createQuery(SELECT_SUBTREE + " AND t.depth < r.depth + :depth\nORDER BY t.lft")
+                        .bind("id", id)
+                        .bind("depth", depth), timer);
+            }
+        });
+    }
+
+    @Override
+    Query<Map<String, Object>> forestQuery(Handle handle, List<Integer> ids, Integer depth) {
+        String sql = "SELECT t.id, t.name, t.description, t.parent_id, t.children_order, r.id AS root_id\n" +
+                "FROM tree r\n" +
+                "JOIN tree t ON (t.lft BETWEEN r.lft AND r.rgt)\n" +
+                "WHERE r.id IN (" + parameterList("id", ids.size()) + ")" +
+                (depth == null ? "" : " AND t.depth < r.depth + :depth") +
+                "\nORDER BY t.lft";
+
+        Query<Map<String, Object>> query = bindList(handle.createQuery(sql), "id", ids);
+        return depth == null ? query : query.bind("depth", depth);
+    }
+
+    public List<Node> findLeaves(final Integer id) {
+        return withHandle("findLeaves", new Operation<List<Node>>() {
+            @Override
+            public List<Node> run(Handle handle, OperationTimer timer) throws Exception {
+                // Not rgt = lft + 1, which misses the nodes whose children were all deleted, leaving a gap
+                List<Node> leaves = handle.createQuery(SELECT_SUBTREE + "\n" +
+                        "AND NOT EXISTS (SELECT 1 FROM tree c WHERE c.lft > t.lft AND c.lft < t.rgt)\n" +
+                        "ORDER BY t.lft")
+                        .bind("id", id)
+                        .map(timer.timeMapping(new NodeMapper()))
+                        .list();
+                timer.addRows(leaves.size());
+                return leaves;
+            }
+        });
+    }
+
+    public int countDescendants(final Integer id) {
+        return withHandle("countDescendants", new Operation<Integer>() {
+            @Override
+            public Integer run(Handle handle, OperationTimer timer) throws Exception {
+                // Counted rather than derived from rgt - lft, which is only exact when deletes left no gaps
+                return handle.createQuery("SELECT count(*)\n" +
+                        "FROM tree r\n" +
+                        "JOIN tree t ON (t.lft > r.lft AND t.lft < r.rgt)\n" +
+                        "WHERE r.id = :id")
+                        .bind("id", id)
+                        .map(IntegerMapper.FIRST)
+                        .first();
+            }
+        });
+    }
+
+    /*
+     * Adds the tree as the last child of its parent, or after every existing tree when it is a root.
+     */
+    @Override
+    int save(Tree entity, Handle handle) throws SQLException {
+        int count = super.save(entity, handle);
+
+        Integer parentId = parentId(entity.getNode());
+        int start;
+        int depth;
+        if (parentId == null) {
+            Integer max = handle.createQuery("select max(rgt) from tree").map(IntegerMapper.FIRST).first();
+            start = max == null ? 1 : max + 1;
+            depth = 0;
+        } else {
+            Map<String, Object> parent = handle.createQuery("select rgt, depth from tree where id = :id")
+                    .bind("id", parentId)
+                    .first();
+            if (parent == null || parent.get("rgt") == null) {
+                // Parent isn't numbered yet, leave the tree for the next rebuild
+                return count;
+            }
+            start = ((Number) parent.get("rgt")).intValue();
+            depth = ((Number) parent.get("depth")).intValue() + 1;
+
+            int width = 2 * entity.toList().size();
+            handle.createStatement("update tree set rgt = rgt + :width where rgt >= :start")
+                    .bind("width", width)
+                    .bind("start", start)
+                    .execute();
+            handle.createStatement("update tree set lft = lft + :width where lft > :start")
+                    .bind("width", width)
+                    .bind("start", start)
+                    .execute();
+        }
+
+        PreparedBatch batch = handle.prepareBatch("update tree set lft = :lft, rgt = :rgt, depth = :depth where id = :id");
+        number(outline(entity), start, depth, batch);
+        if (batch.getSize() > 0) {
+            batch.execute();
+        }
+        return count;
+    }
+
+    /*
+     * Numbers the new trees after every other one, and renumbers the trees the other loaded nodes were added to.
+     */
+    @Override
+    void bulkLoaded(Handle handle, IdRange loaded) {
+        List<Integer> attachedTo = bindRange(handle.createQuery("SELECT DISTINCT parent_id FROM tree\n" +
+                "WHERE id BETWEEN :minId AND :maxId AND parent_id IS NOT NULL AND parent_id NOT BETWEEN :minId AND :maxId"), loaded)
+                .map(IntegerMapper.FIRST)
+                .list();
+        Set<Integer> roots = new LinkedHashSet<>();
+        for (Integer parentId : attachedTo) {
+            Integer root = rootOf(handle, parentId);
+            if (root != null) {
+                roots.add(root);
+            }
+        }
+        for (Integer root : roots) {
+            rebuildTree(handle, root, false);
+        }
+
+        List<Integer> newRoots = bindRange(handle.createQuery("SELECT id FROM tree\n" +
+                "WHERE id BETWEEN :minId AND :maxId AND parent_id IS NULL ORDER BY children_order NULLS LAST, id"), loaded)
+                .map(IntegerMapper.FIRST)
+                .list();
+        for (Integer root : newRoots) {
+            rebuildTree(handle, root, true);
+        }
+    }
+
+    /*
+     * Leaves a gap in the numbering, which the reads don't mind, as they never derive sizes from rgt - lft; rebuild()
+     * closes it.
+     */
+    @Override
+    int deleteSubtree(Handle handle, Integer id) {
+        int[] interval = handle.createQuery("SELECT lft, rgt FROM tree WHERE id = :id AND lft IS NOT NULL")
+                .bind("id", id)
+                .map(new ResultSetMapper<int[]>() {
+                    @Override
+                    public int[] map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+                        return new int[]{r.getInt("lft"), r.getInt("rgt")};
+                    }
+                })
+                .first();
+        if (interval == null) {
+            return 0;
+        }
+        return handle.createStatement("DELETE FROM tree WHERE lft BETWEEN :lft AND :rgt")
+                .bind("lft", interval[0])
+                .bind("rgt", interval[1])
+                .execute();
+    }
+
+    @Override
+    List<Integer> subtreeIds(Handle handle, Integer id) {
+        return handle.createQuery("SELECT t.id\n" +
+                "FROM tree r\n" +
+                "JOIN tree t ON (t.lft BETWEEN r.lft AND r.rgt)\n" +
+                "WHERE r.id = :id\n" +
+                "ORDER BY t.depth DESC")
+                .bind("id", id)
+                .map(IntegerMapper.FIRST)
+                .list();
+    }
+
+    /*
+     * Renumbers the trees the nodes left, found by their old intervals, and the trees they joined. A node that became a
+     * root is numbered after every other tree, as its old interval lies within the tree it left.
+     */
+    @Override
+    void moved(Handle handle, List<Node> nodes) {
+        Set<Integer> roots = new LinkedHashSet<>();
+        Set<Integer> newRoots = new LinkedHashSet<>();
+        for (Node node : nodes) {
+            Integer left = handle.createQuery("SELECT r.id\n" +
+                    "FROM tree n\n" +
+                    "JOIN tree r ON (n.lft BETWEEN r.lft AND r.rgt)\n" +
+                    "WHERE n.id = :id AND r.depth = 0")
+                    .bind("id", node.getId())
+                    .map(IntegerMapper.FIRST)
+                    .first();
+            if (left != null) {
+                roots.add(left);
+            }
+            if (parentId(node) == null) {
+                newRoots.add(node.getId());
+            } else {
+                Integer joined = rootOf(handle, node.getId());
+                if (joined != null) {
+                    roots.add(joined);
+                }
+            }
+        }
+        roots.removeAll(newRoots);
+
+        for (Integer root : roots) {
+            rebuildTree(handle, root, false);
+        }
+        for (Integer root : newRoots) {
+            rebuildTree(handle, root, true);
+        }
+    }
+
+    /*
+     * Renumbers the parents whose children were reordered without changing parents; when any node changed parents
+     * moved() renumbers its trees anyway.
+     */
+    @Override
+    int update(Handle handle, List<Node> nodes, Map<Integer, Integer> previousParentIds) {
+        List<Node> stayed = new ArrayList<>();
+        for (Node node : nodes) {
+            if (!Objects.equal(parentId(node), previousParentIds.get(node.getId()))) {
+                return super.update(handle, nodes, previousParentIds);
+            }
+            stayed.add(node);
+        }
+
+        Map<Integer, Integer> previousOrders = new HashMap<>();
+        for (int from = 0; from < stayed.size(); from += batchSize) {
+            List<Node> chunk = stayed.subList(from, Math.min(from + batchSize, stayed.size()));
+            List<Integer> ids = new ArrayList<>(chunk.size());
+            for (Node node : chunk) {
+                ids.add(node.getId());
+            }
+            for (Map<String, Object> row : bindList(handle.createQuery("SELECT id, children_order FROM tree WHERE id IN (" + parameterList("id", ids.size()) + ")"), "id", ids).list()) {
+                Number order = (Number) row.get("children_order");
+                previousOrders.put(((Number) row.get("id")).intValue(), order == null ? null : order.intValue());
+            }
+        }
+
+        int count = super.update(handle, nodes, previousParentIds);
+
+        Set<Integer> reorderedParents = new LinkedHashSet<>();
+        for (Node node : stayed) {
+            if (!Objects.equal(node.getOrder(), previousOrders.get(node.getId()))) {
+                reorderedParents.add(parentId(node));
+            }
+        }
+        for (Integer parentId : reorderedParents) {
+            reordered(handle, parentId);
+        }
+        return count;
+    }
+
+    /*
+     * Renumbers the parent's interval in the new order of its children; the interval keeps its bounds, as it holds
+     * the same nodes. Every tree is read within its own interval, so reordering roots needs no renumbering.
+     */
+    @Override
+    void reordered(Handle handle, Integer parentId) {
+        if (parentId == null) {
+            return;
+        }
+        Map<String, Object> parent = handle.createQuery("select lft, depth from tree where id = :id")
+                .bind("id", parentId)
+                .first();
+        if (parent == null || parent.get("lft") == null) {
+            // Not numbered yet, so neither are its children
+            return;
+        }
+
+        List<TreeOutline> roots = outlines(handle.createQuery("SELECT t.id, t.parent_id\n" +
+                "FROM tree r\n" +
+                "JOIN tree t ON (t.lft BETWEEN r.lft AND r.rgt)\n" +
+                "WHERE r.id = :id\n" +
+                "ORDER BY t.children_order NULLS LAST, t.id")
+                .bind("id", parentId));
+
+        PreparedBatch batch = handle.prepareBatch("update tree set lft = :lft, rgt = :rgt, depth = :depth where id = :id");
+        int next = ((Number) parent.get("lft")).intValue();
+        for (TreeOutline root : roots) {
+            next = number(root, next, ((Number) parent.get("depth")).intValue(), batch);
+        }
+        if (batch.getSize() > 0) {
+            batch.execute();
+        }
+    }
+
+    /*
+     * Renumbers every tree in the table from the parent_id and children_order columns: one read of the whole table,
+     * then batched updates.
+     */
+    public void rebuild() {
+        inTransaction("rebuild", new Operation<Object>() {
+            @Override
+            public Object run(Handle handle, OperationTimer timer) throws Exception {
+                rebuild(handle);
+                return null;
+            }
+        });
+    }
+
+    private void rebuild(Handle handle) {
+        List<TreeOutline> roots = outlines(handle.createQuery("select id, parent_id from tree order by children_order nulls last, id"));
+
+        PreparedBatch batch = handle.prepareBatch("update tree set lft = :lft, rgt = :rgt, depth = :depth where id = :id");
+        int next = 1;
+        for (TreeOutline root : roots) {
+            next = number(root, next, 0, batch);
+        }
+        if (batch.getSize() > 0) {
+            batch.execute();
+        }
+    }
+
+    /*
+     * Renumbers the tree under the root from the parent_id and children_order columns, from where it starts now, or
+     * after every other tree when append is set or it isn't numbered yet. Reads only the rows of the tree. When it grows
+     * the intervals after it are shifted to make room; when it shrinks it leaves a gap.
+     */
+    private void rebuildTree(Handle handle, Integer rootId, boolean append) {
+        Map<String, Object> root = handle.createQuery("select parent_id, lft, rgt from tree where id = :id")
+                .bind("id", rootId)
+                .first();
+        if (root == null || root.get("parent_id") != null) {
+            // Deleted, or moved below another node since
+            return;
+        }
+
+        String sql = "WITH RECURSIVE subtree (id, parent_id, children_order) AS (\n" +
+                "    SELECT id, parent_id, children_order FROM tree WHERE id = " + Dialect.of(handle).recursiveParameter("id", rootId) + "\n" +
+                "  UNION ALL\n" +
+                "    SELECT t.id, t.parent_id, t.children_order FROM tree t JOIN subtree s ON (t.parent_id = s.id)\n" +
+                ")\n" +
+                "SELECT id, parent_id FROM subtree ORDER BY children_order NULLS LAST, id";
+        List<TreeOutline> outlines = outlines(handle.createQuery(sql).bind("id", rootId));
+
+        int start;
+        if (append || root.get("lft") == null) {
+            Integer max = handle.createQuery("select max(rgt) from tree").map(IntegerMapper.FIRST).first();
+            start = max == null ? 1 : max + 1;
+        } else {
+            start = ((Number) root.get("lft")).intValue();
+            int oldRgt = ((Number) root.get("rgt")).intValue();
+            int shift = start + 2 * size(outlines) - 1 - oldRgt;
+            if (shift > 0) {
+                handle.createStatement("update tree set rgt = rgt + :shift where rgt > :rgt")
+                        .bind("shift", shift)
+                        .bind("rgt", oldRgt)
+                        .execute();
+                handle.createStatement("update tree set lft = lft + :shift where lft > :rgt")
+                        .bind("shift", shift)
+                        .bind("rgt", oldRgt)
+                        .execute();
+            }
+        }
+
+        PreparedBatch batch = handle.prepareBatch("update tree set lft = :lft, rgt = :rgt, depth = :depth where id = :id");
+        for (TreeOutline outline : outlines) {
+            start = number(outline, start, 0, batch);
+        }
+        if (batch.getSize() > 0) {
+            batch.execute();
+        }
+    }
+
+    /*
+     * The root of the tree holding the node, following parent_id.
+     */
+    private static Integer rootOf(Handle handle, Integer id) {
+        String sql = "WITH RECURSIVE ancestors (id, parent_id) AS (\n" +
+                "    SELECT id, parent_id FROM tree WHERE id = " + Dialect.of(handle).recursiveParameter("id", id) + "\n" +
+                "  UNION ALL\n" +
+                "    SELECT t.id, t.parent_id FROM tree t JOIN ancestors a ON (t.id = a.parent_id)\n" +
+                ")\n" +
+                "SELECT id FROM ancestors WHERE parent_id IS NULL";
+        return handle.createQuery(sql)
+                .bind("id", id)
+                .map(IntegerMapper.FIRST)
+                .first();
+    }
+
+    private static int size(List<TreeOutline> roots) {
+        int size = 0;
+        Deque<TreeOutline> stack = new ArrayDeque<>(roots);
+        while (!stack.isEmpty()) {
+            TreeOutline outline = stack.pop();
+            size++;
+            for (TreeOutline child : outline.children) {
+                stack.push(child);
+            }
+        }
+        return size;
+    }
+
+    /*
+     * Links the rows of id and parent_id into outlines, children in the order of the rows, and returns those whose
+     * parent isn't among them.
+     */
+    private static List<TreeOutline> outlines(Query<Map<String, Object>> query) {
+        Map<Integer, TreeOutline> outlines = new HashMap<>();
+        List<TreeOutline> all = new ArrayList<>();
+
+        ResultIterator<int[]> rows = query
+                .map(new ResultSetMapper<int[]>() {
+                    @Override
+                    public int[] map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+                        return new int[]{r.getInt(1), r.getInt(2)};
+                    }
+                })
+                .iterator();
+        try {
+            while (rows.hasNext()) {
+                int[] row = rows.next();
+                TreeOutline outline = new TreeOutline(row[0], row[1]);
+                outlines.put(outline.id, outline);
+                all.add(outline);
+            }
+        } finally {
+            rows.close();
+        }
+
+        List<TreeOutline> roots = new ArrayList<>();
+        for (TreeOutline outline : all) {
+            TreeOutline parent = outline.parentId == 0 ? null : outlines.get(outline.parentId);
+            if (parent == null) {
+                roots.add(outline);
+            } else {
+                parent.children.add(outline);
+            }
+        }
+        return roots;
+    }
+
+    /*
+     * Numbers the subtree in pre-order without recursion and returns the next free number.
+     */
+    private int number(TreeOutline root, int next, int depth, PreparedBatch batch) {
+        Deque<TreeOutline> stack = new ArrayDeque<>();
+        Deque<Iterator<TreeOutline>> children = new ArrayDeque<>();
+
+        root.lft = next++;
+        stack.push(root);
+        children.push(root.children.iterator());
+
+        while (!stack.isEmpty()) {
+            if (children.peek().hasNext()) {
+                TreeOutline child = children.peek().next();
+                child.lft = next++;
+                stack.push(child);
+                children.push(child.children.iterator());
+            } else {
+                TreeOutline outline = stack.pop();
+                children.pop();
+                batch.add()
+                        .bind("id", outline.id)
+                        .bind("lft", outline.lft)
+                        .bind("rgt", next++)
+                        .bind("depth", depth + stack.size());
+
+                if (batch.getSize() >= batchSize) {
+                    batch.execute();
+                }
+            }
+        }
+        return next;
+    }
+
+    private static TreeOutline outline(Tree tree) {
+        TreeOutline root = new TreeOutline(tree.getId(), 0);
+
+        Deque<Tree> trees = new ArrayDeque<>();
+        Deque<TreeOutline> outlines = new ArrayDeque<>();
+        trees.push(tree);
+        outlines.push(root);
+        while (!trees.isEmpty()) {
+            Tree current = trees.pop();
+            TreeOutline outline = outlines.pop();
+            for (Tree child : current.getChildren()) {
+                TreeOutline childOutline = new TreeOutline(child.getId(), outline.id);
+                outline.children.add(childOutline);
+                trees.push(child);
+                outlines.push(childOutline);
+            }
+        }
+        return root;
+    }
+
+    private static class TreeOutline {
+
+        private final int id;
+        private final int parentId;
+        private final List<TreeOutline> children = new ArrayList<>();
+        private int lft;
+
+        private TreeOutline(int id, int parentId) {
+            this.id = id;
+            this.parentId = parentId;
+        }
+
+    }
+}
@@ -0,0 +1,14 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+
+import java.sql.SQLException;
+
+interface NodeWriter {
+
+    void write(Node node) throws SQLException;
+
+    void finish() throws SQLException;
+
+    void cancel();
+}
@@ -0,0 +1,74 @@
+package com.github.mwedgwood.repository;
+
+/*
+ * Timings of one repository operation, in nanoseconds. Query time is whatever the operation spent with its
+ * connection other than mapping rows and assembling the tree, so it covers executing statements and fetching rows.
+ */
+public final class OperationMetrics {
+
+    private final String operation;
+    private final boolean failed;
+    private final int rows;
+    private final long connectionWaitNanos;
+    private final long queryNanos;
+    private final long mappingNanos;
+    private final long assemblyNanos;
+    private final long totalNanos;
+
+    OperationMetrics(String operation, boolean failed, int rows, long connectionWaitNanos, long queryNanos,
+                     long mappingNanos, long assemblyNanos, long totalNanos) {
+        this.operation = operation;
+        this.failed = failed;
+        this.rows = rows;
+        this.connectionWaitNanos = connectionWaitNanos;
+        this.queryNanos = queryNanos;
+        this.mappingNanos = mappingNanos;
+        this.assemblyNanos = assemblyNanos;
+        this.totalNanos = totalNanos;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /*
+     * Rows read by a query, or written by a save, bulk load, update or delete.
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /*
+     * Time until the operation had a connection, including beginning its transaction.
+     */
+    public long getConnectionWaitNanos() {
+        return connectionWaitNanos;
+    }
+
+    public long getQueryNanos() {
+        return queryNanos;
+    }
+
+    public long getMappingNanos() {
+        return mappingNanos;
+    }
+
+    public long getAssemblyNanos() {
+        return assemblyNanos;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    @Override
+    public String toString() {
+        return operation + (failed ? " (failed)" : "") + ": " + rows + " rows in " + totalNanos + "ns" +
+                " (connection wait " + connectionWaitNanos + "ns, query " + queryNanos + "ns, mapping " + mappingNanos +
+                "ns, assembly " + assemblyNanos + "ns)";
+    }
+}
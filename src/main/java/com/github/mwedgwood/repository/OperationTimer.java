@@ -0,0 +1,89 @@
+package com.github.mwedgwood.repository;
+
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+ * Collects the timings of one operation for a RepositoryListener. Without a listener the operation gets DISABLED,
+ * whose methods do nothing and never read the clock.
+ */
+class OperationTimer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OperationTimer.class);
+
+    static final OperationTimer DISABLED = new OperationTimer(null, null);
+
+    private final String operation;
+    private final RepositoryListener listener;
+    private final long start;
+
+    private long connectionWait;
+    private long mapping;
+    private long assembly;
+    private int rows;
+
+    OperationTimer(String operation, RepositoryListener listener) {
+        this.operation = operation;
+        this.listener = listener;
+        this.start = listener == null ? 0 : System.nanoTime();
+    }
+
+    /*
+     * The clock, or 0 when disabled.
+     */
+    long time() {
+        return listener == null ? 0 : System.nanoTime();
+    }
+
+    void connected() {
+        if (listener != null) {
+            connectionWait = System.nanoTime() - start;
+        }
+    }
+
+    void addRows(int count) {
+        rows += count;
+    }
+
+    void addAssembly(long nanos) {
+        assembly += nanos;
+    }
+
+    <T> ResultSetMapper<T> timeMapping(final ResultSetMapper<T> mapper) {
+        if (listener == null) {
+            return mapper;
+        }
+        return new ResultSetMapper<T>() {
+            @Override
+            public T map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+                long before = System.nanoTime();
+                try {
+                    return mapper.map(index, r, ctx);
+                } finally {
+                    mapping += System.nanoTime() - before;
+                }
+            }
+        };
+    }
+
+    /*
+     * Reports to the listener. A listener that throws is logged and otherwise ignored, so it can neither fail an
+     * operation that worked nor replace the exception of one that didn't.
+     */
+    void finish(boolean failed) {
+        if (listener != null) {
+            long total = System.nanoTime() - start;
+            long query = Math.max(0, total - connectionWait - mapping - assembly);
+            try {
+                listener.operationCompleted(new OperationMetrics(operation, failed, rows, connectionWait, query, mapping, assembly, total));
+            } catch (RuntimeException e) {
+                LOGGER.warn("Listener failed on the metrics of " + operation, e);
+            }
+        }
+    }
+}
@@ -5,6 +5,21 @@ public class Order {
     private boolean ascending;
     private String propertyName;
 
+    public static Order asc(String propertyName) {
+        return create(propertyName, true);
+    }
+
+    public static Order desc(String propertyName) {
+        return create(propertyName, false);
+    }
+
+    private static Order create(String propertyName, boolean ascending) {
+        Order order = new Order();
+        order.setPropertyName(propertyName);
+        order.setAscending(ascending);
+        return order;
+    }
+
     public boolean isAscending() {
         return ascending;
     }
@@ -0,0 +1,11 @@
+package com.github.mwedgwood.repository;
+
+/*
+ * Receives the timings of every repository operation, on the thread that ran it, once the operation completed or
+ * failed. Register one with JdbcTreeRepositoryImpl.setListener; without one nothing is timed. Anything it throws is
+ * logged and ignored, leaving the result of the operation as it was.
+ */
+public interface RepositoryListener {
+
+    void operationCompleted(OperationMetrics metrics);
+}
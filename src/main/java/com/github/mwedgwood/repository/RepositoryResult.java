@@ -6,7 +6,11 @@ public interface RepositoryResult<T> {
 
     RepositoryResult<T> limit(int page, int perPage);
 
+    RepositoryResult<T> after(Object... key);
+
     RepositoryResult<T> orderBy(Order... orders);
 
     List<T> list();
+
+    Iterable<List<T>> pages();
 }
@@ -1,30 +1,359 @@
 package com.github.mwedgwood.repository;
 
+import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
+/*
+ * Pages through the rows of a table with keyset, or seek, pagination. A page is fetched with a LIMIT and a condition
+ * placing its rows after the sort key of the last row before it, so with an index on the sort columns the database
+ * seeks straight to the page, where an OFFSET would read and throw away every row before it. The sort always ends
+ * with the unique property, making the keys unique, so no row is skipped or repeated between pages. Only the first
+ * page of limit() is reached with an OFFSET; after() starts from a key instead.
+ *
+ * Ascending sorts put nulls last and descending ones first, the same on every database.
+ */
 class RepositoryResultImpl<T> implements RepositoryResult<T> {
 
-    private final Query<T> query;
+    private final JdbcTreeRepositoryImpl repository;
+    private final String name;
+    private final String select;
+    private final String from;
+    private final String condition;
+    private final Map<String, ?> parameters;
+    private final Map<String, String> columns;
+    private final String uniqueProperty;
+    private final ResultSetMapper<T> mapper;
+    private final int fetchSize;
 
-    RepositoryResultImpl(Query<T> query) {
-        this.query = query;
+    private List<Order> orders;
+    private Object[] after;
+    private int page = 1;
+    private Integer perPage;
+
+    /*
+     * Rows are the columns of select, from the from clause, that meet condition, sorted by default by the orders
+     * given; columns maps the properties that may be sorted on to their columns, and must hold uniqueProperty.
+     */
+    RepositoryResultImpl(JdbcTreeRepositoryImpl repository, String name, String select, String from, String condition, Map<String, ?> parameters,
+                         Map<String, String> columns, String uniqueProperty, ResultSetMapper<T> mapper, int fetchSize, Order... orders) {
+        if (!columns.containsKey(uniqueProperty)) throw new IllegalArgumentException("Unique property " + uniqueProperty + " must be sortable");
+        this.repository = repository;
+        this.name = name;
+        this.select = select;
+        this.from = from;
+        this.condition = condition;
+        this.parameters = parameters;
+        this.columns = columns;
+        this.uniqueProperty = uniqueProperty;
+        this.mapper = mapper;
+        this.fetchSize = fetchSize;
+        orderBy(orders);
     }
 
+    /*
+     * Pages are numbered from 1, counting from the key set by after(), if any. Page n is read with an OFFSET, so the
+     * database still steps over the rows of the pages before it: deep pages cost O(offset). To read on, pass the key of
+     * the last row seen to after(), or iterate pages(), which seek instead.
+     */
     @Override
     public RepositoryResult<T> limit(int page, int perPage) {
+        if (page < 1) throw new IllegalArgumentException("page must be positive");
+        if (perPage < 1) throw new IllegalArgumentException("perPage must be positive");
+        this.page = page;
+        this.perPage = perPage;
+        return this;
+    }
+
+    /*
+     * Starts right after the row with the given key: the values of its sort columns, in the order of the sort, which
+     * always ends with the unique property. The database seeks to it, however far in the rows are.
+     */
+    @Override
+    public RepositoryResult<T> after(Object... key) {
+        if (key.length == 0) throw new IllegalArgumentException("key must not be empty");
+        if (key[key.length - 1] == null) throw new IllegalArgumentException("The unique property of the key must not be null");
+        this.after = key.clone();
         return this;
     }
 
     @Override
     public RepositoryResult<T> orderBy(Order... orders) {
+        List<Order> sort = new ArrayList<>();
+        boolean unique = false;
+        for (Order order : orders) {
+            if (!columns.containsKey(order.getPropertyName())) {
+                throw new IllegalArgumentException("Can not order by " + order.getPropertyName() + ", only by " + columns.keySet());
+            }
+            sort.add(order);
+            unique |= order.getPropertyName().equals(uniqueProperty);
+            if (unique) {
+                // Nothing after the unique property can change the order
+                break;
+            }
+        }
+        if (!unique) {
+            sort.add(Order.asc(uniqueProperty));
+        }
+        this.orders = sort;
         return this;
     }
 
+    /*
+     * The page set by limit(), or every row when no limit was set.
+     */
     @Override
     public List<T> list() {
-        return query.list();
+        if (perPage == null) {
+            List<T> rows = new ArrayList<>();
+            for (List<T> page : pages()) {
+                rows.addAll(page);
+            }
+            return rows;
+        }
+
+        final List<Order> sort = orders;
+        final Object[] key = key(sort);
+        final int offset = (page - 1) * perPage;
+        final int size = perPage;
+        return repository.withHandle(name, new JdbcTreeRepositoryImpl.Operation<List<T>>() {
+            @Override
+            public List<T> run(Handle handle, OperationTimer timer) throws Exception {
+                return fetch(handle, timer, sort, key, offset, size).rows;
+            }
+        });
+    }
+
+    /*
+     * Streams the pages of perPage rows, fetchSize when no limit was set, from the page set by limit() on; each page is
+     * one query, run when the iterator gets to it, seeking past the last row of the page before.
+     */
+    @Override
+    public Iterable<List<T>> pages() {
+        final List<Order> sort = orders;
+        final Object[] key = key(sort);
+        final int offset = perPage == null ? 0 : (page - 1) * perPage;
+        final int size = perPage == null ? fetchSize : perPage;
+        return new Iterable<List<T>>() {
+            @Override
+            public Iterator<List<T>> iterator() {
+                return new PageIterator(sort, key, offset, size);
+            }
+        };
+    }
+
+    private Object[] key(List<Order> sort) {
+        if (after != null && after.length != sort.size()) {
+            throw new IllegalArgumentException("The key needs a value for each of the " + sort.size() + " sort columns, " +
+                    "ending with " + uniqueProperty);
+        }
+        return after;
+    }
+
+    private final class PageIterator implements Iterator<List<T>> {
+
+        private final List<Order> sort;
+        private final int size;
+        private int offset;
+        private Object[] lastKey;
+        private Page<T> next;
+        private boolean done;
+
+        private PageIterator(List<Order> sort, Object[] lastKey, int offset, int size) {
+            this.sort = sort;
+            this.lastKey = lastKey;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                next = repository.withHandle(name, new JdbcTreeRepositoryImpl.Operation<Page<T>>() {
+                    @Override
+                    public Page<T> run(Handle handle, OperationTimer timer) throws Exception {
+                        return fetch(handle, timer, sort, lastKey, offset, size);
+                    }
+                });
+                // Only the first page is offset; the rest seek past the last row
+                offset = 0;
+                // A short page is the last, saving the query that would come back empty
+                done = next.rows.size() < size;
+                lastKey = next.lastKey;
+                if (next.rows.isEmpty()) {
+                    next = null;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public List<T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            List<T> rows = next.rows;
+            next = null;
+            return rows;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private Page<T> fetch(Handle handle, OperationTimer timer, List<Order> sort, Object[] after, int offset, int limit) {
+        StringBuilder sql = new StringBuilder(select);
+        StringBuilder orderBy = new StringBuilder();
+        for (int i = 0; i < sort.size(); i++) {
+            Order order = sort.get(i);
+            String column = columns.get(order.getPropertyName());
+            sql.append(", ").append(column).append(" AS key").append(i);
+            orderBy.append(i == 0 ? "" : ", ").append(column).append(order.isAscending() ? " ASC NULLS LAST" : " DESC NULLS FIRST");
+        }
+        sql.append("\nFROM ").append(from).append("\nWHERE ").append(condition);
+        if (after != null) {
+            sql.append("\nAND ").append(seek(sort, after, Dialect.of(handle).supportsRowValueComparison()));
+        }
+        sql.append("\nORDER BY ").append(orderBy).append("\nLIMIT :limit");
+        if (offset > 0) {
+            sql.append(" OFFSET :offset");
+        }
+
+        Query<Map<String, Object>> query = handle.createQuery(sql.toString())
+                .bindFromMap(parameters)
+                .bind("limit", limit)
+                .bind("offset", offset)
+                .setFetchSize(Math.min(limit, fetchSize));
+        if (after != null) {
+            for (int i = 0; i < after.length; i++) {
+                if (after[i] != null) {
+                    query.bind("after" + i, after[i]);
+                }
+            }
+        }
+
+        final Page<T> page = new Page<>();
+        page.lastKey = after;
+        final int keys = sort.size();
+        ResultIterator<T> rows = query.map(timer.timeMapping(new ResultSetMapper<T>() {
+            @Override
+            public T map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+                Object[] key = new Object[keys];
+                for (int i = 0; i < keys; i++) {
+                    key[i] = r.getObject("key" + i);
+                }
+                page.lastKey = key;
+                return mapper.map(index, r, ctx);
+            }
+        })).iterator();
+        try {
+            while (rows.hasNext()) {
+                page.rows.add(rows.next());
+            }
+        } finally {
+            rows.close();
+        }
+        timer.addRows(page.rows.size());
+        return page;
+    }
+
+    /*
+     * The rows sorting after the key. A bound on the first sort column alone, where there is one, gives the database a
+     * range of its index to scan; the rest is a row value comparison when every column sorts the same way and the key
+     * has no nulls, and is otherwise spelled out column by column.
+     */
+    private String seek(List<Order> sort, Object[] key, boolean rowValues) {
+        boolean ascending = sort.get(0).isAscending();
+        boolean rowValue = rowValues;
+        for (int i = 0; i < sort.size(); i++) {
+            rowValue &= sort.get(i).isAscending() == ascending && key[i] != null;
+        }
+        String after = rowValue ? rowValueSeek(sort) : seek(sort, key, 0);
+
+        String bound = leadingBound(sort, key);
+        return bound == null ? after : bound + " AND " + after;
+    }
+
+    /*
+     * A condition on the first sort column that every row after the key meets, or null when there is none. A sort on
+     * the unique property alone is bound by the seek itself.
+     */
+    private String leadingBound(List<Order> sort, Object[] key) {
+        if (sort.size() == 1) {
+            return null;
+        }
+        Order order = sort.get(0);
+        String column = columns.get(order.getPropertyName());
+        if (key[0] == null) {
+            // Ascending, only more nulls follow a null; descending, everything does
+            return order.isAscending() ? column + " IS NULL" : null;
+        }
+        return order.isAscending() ? "(" + column + " >= :after0 OR " + column + " IS NULL)" : column + " <= :after0";
+    }
+
+    /*
+     * A row value comparison is unknown for rows with a null column level with the key. Descending, those rows sort
+     * before it anyway; ascending, they sort after it, so they are added back.
+     */
+    private String rowValueSeek(List<Order> sort) {
+        StringBuilder row = new StringBuilder();
+        StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < sort.size(); i++) {
+            row.append(i == 0 ? "" : ", ").append(columns.get(sort.get(i).getPropertyName()));
+            parameters.append(i == 0 ? "" : ", ").append(":after").append(i);
+        }
+        boolean ascending = sort.get(0).isAscending();
+        StringBuilder sql = new StringBuilder("((").append(row).append(ascending ? ") > (" : ") < (").append(parameters).append(")");
+        if (ascending) {
+            StringBuilder level = new StringBuilder();
+            // The last column is the unique property, which is never null
+            for (int i = 0; i < sort.size() - 1; i++) {
+                String column = columns.get(sort.get(i).getPropertyName());
+                sql.append(" OR (").append(level).append(column).append(" IS NULL)");
+                level.append(column).append(" = :after").append(i).append(" AND ");
+            }
+        }
+        return sql.append(")").toString();
+    }
+
+    /*
+     * The rows sorting after the key from the i-th sort column on: after it on that column, or level with it and after
+     * it on the rest.
+     */
+    private String seek(List<Order> sort, Object[] key, int i) {
+        Order order = sort.get(i);
+        String column = columns.get(order.getPropertyName());
+        String parameter = ":after" + i;
+        if (i == sort.size() - 1) {
+            // The unique property, which is never null
+            return "(" + column + (order.isAscending() ? " > " : " < ") + parameter + ")";
+        }
+
+        String rest = seek(sort, key, i + 1);
+        if (key[i] == null) {
+            String level = "(" + column + " IS NULL AND " + rest + ")";
+            return order.isAscending() ? level : "(" + column + " IS NOT NULL OR " + level + ")";
+        }
+        String after = order.isAscending() ? column + " > " + parameter + " OR " + column + " IS NULL" : column + " < " + parameter;
+        return "(" + after + " OR (" + column + " = " + parameter + " AND " + rest + "))";
+    }
+
+    private static final class Page<T> {
+
+        private final List<T> rows = new ArrayList<>();
+        private Object[] lastKey;
     }
 
 }
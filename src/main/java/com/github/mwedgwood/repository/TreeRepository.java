@@ -1,10 +1,71 @@
 package com.github.mwedgwood.repository;
 
+import com.github.mwedgwood.model.tree.Node;
 import com.github.mwedgwood.model.tree.Tree;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
 public interface TreeRepository extends Repository<Tree> {
 
     Tree findEntireTree(Integer rootId);
 
+    /*
+     * The node and its descendants down to depth levels, the node itself being the first; a null depth means no limit,
+     * as findEntireTree.
+     */
     Tree findByIdForDepth(Integer id, Integer depth);
+
+    /*
+     * Just the node, as a Tree whose children are fetched on first use, prefetchDepth levels at a time, together with
+     * those of its unloaded siblings; see Tree.lazy(). Null if there is no such node.
+     */
+    Tree findLazyTree(Integer id, int prefetchDepth);
+
+    /*
+     * The children of the node, or the roots for a null parentId, each as a Tree of just the node, sorted by order and
+     * then id unless orderBy() says otherwise; "order", "id" and "name" can be sorted on. Pages are read by keyset
+     * pagination, which an index on tree (parent_id, children_order, id) serves for the default order.
+     */
+    RepositoryResult<Tree> findChildren(Integer parentId);
+
+    /*
+     * The trees below each of the ids, fetched together, keyed and ordered by id; ids without a node are left out.
+     */
+    Map<Integer, Tree> findEntireTrees(Collection<Integer> rootIds);
+
+    /*
+     * As findEntireTrees, limited to depth levels below each id as findByIdForDepth is; a null depth means no limit.
+     */
+    Map<Integer, Tree> findByIdsForDepth(Collection<Integer> ids, Integer depth);
+
+    /*
+     * Writes the tree below rootId to the stream as the JSON JsonUtil.toJson gives for findEntireTree(rootId), straight
+     * from the result set, without building the Tree; null if there is no such node. Returns the number of nodes.
+     */
+    int exportJson(Integer rootId, OutputStream out, boolean pretty) throws IOException;
+
+    int bulkLoad(Tree tree);
+
+    int bulkLoad(Iterator<? extends Node> nodes);
+
+    /*
+     * Moves the node, with its subtree, to the given position among the children of the new parent; a null parent
+     * makes it a root, at the given position among the roots. Returns whether the other children of the new parent
+     * were renumbered to make room, changing their orders.
+     */
+    boolean move(Integer nodeId, Integer newParentId, int position);
+
+    /*
+     * Deletes the node and all its descendants in one transaction, returning the number of rows deleted.
+     */
+    int deleteSubtree(Integer id);
+
+    /*
+     * Deletes the node and all its descendants in transactions of at most chunkSize rows each, leaves first.
+     */
+    int deleteSubtree(Integer id, int chunkSize);
 }
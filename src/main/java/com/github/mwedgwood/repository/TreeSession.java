@@ -0,0 +1,147 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import com.google.common.base.Objects;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Unit of work over a JdbcTreeRepositoryImpl. Every node of a tree loaded through the session, or attached to it, is
+ * snapshotted; flush() compares the nodes against their snapshots and writes only the changed rows, in JDBC batches
+ * inside one transaction. A node counts as changed when its name, description or order changed, or when its parent
+ * changed, either through the Tree links (addChild, move, ...) or through Node.setParentId on a detached root.
+ *
+ * Only the nodes the session loaded are written: new nodes still need a save(), removed ones a delete(), and a
+ * subtree moved into a tree the session doesn't track is not seen.
+ */
+public class TreeSession {
+
+    private final JdbcTreeRepositoryImpl repository;
+    private final List<Tree> trees = new ArrayList<>();
+    private final Map<Integer, Snapshot> snapshots = new HashMap<>();
+
+    TreeSession(JdbcTreeRepositoryImpl repository) {
+        this.repository = repository;
+    }
+
+    public Tree findEntireTree(Integer rootId) {
+        return attach(repository.findEntireTree(rootId));
+    }
+
+    public Tree findByIdForDepth(Integer id, Integer depth) {
+        return attach(repository.findByIdForDepth(id, depth));
+    }
+
+    /*
+     * Tracks a tree that was loaded elsewhere, taking its current state as the persisted one.
+     */
+    public Tree attach(Tree tree) {
+        if (tree != null) {
+            trees.add(tree);
+            for (Tree node : tree.toList()) {
+                if (node.getId() != null) {
+                    snapshots.put(node.getId(), new Snapshot(node));
+                }
+            }
+        }
+        return tree;
+    }
+
+    public boolean isDirty() {
+        return !changes().isEmpty();
+    }
+
+    /*
+     * Writes the changed nodes and returns how many there were.
+     */
+    public int flush() {
+        List<Tree> changes = changes();
+        if (changes.isEmpty()) {
+            return 0;
+        }
+
+        List<Node> nodes = new ArrayList<>(changes.size());
+        Map<Integer, Integer> previousParentIds = new HashMap<>();
+        for (Tree tree : changes) {
+            Node node = tree.getNode().setParentId(parentId(tree));
+            nodes.add(node);
+            previousParentIds.put(node.getId(), snapshots.get(node.getId()).parentId);
+        }
+
+        int count = repository.update(nodes, previousParentIds);
+
+        for (Tree tree : changes) {
+            snapshots.put(tree.getId(), new Snapshot(tree));
+        }
+        return count;
+    }
+
+    /*
+     * Stops tracking every tree, without writing anything.
+     */
+    public void clear() {
+        trees.clear();
+        snapshots.clear();
+    }
+
+    /*
+     * Changed nodes, parents before their children within each tree.
+     */
+    private List<Tree> changes() {
+        List<Tree> changes = new ArrayList<>();
+        Set<Tree> roots = Collections.newSetFromMap(new IdentityHashMap<Tree, Boolean>());
+        Set<Integer> seen = new HashSet<>();
+
+        for (Tree tree : trees) {
+            // A tracked tree may have been attached below another one since it was loaded
+            Tree root = tree.findRoot();
+            if (!roots.add(root)) {
+                continue;
+            }
+            for (Tree node : root.toList()) {
+                Integer id = node.getId();
+                Snapshot snapshot = id == null ? null : snapshots.get(id);
+                if (snapshot != null && seen.add(id) && !snapshot.matches(node)) {
+                    changes.add(node);
+                }
+            }
+        }
+        return changes;
+    }
+
+    private static Integer parentId(Tree tree) {
+        return tree.getParent() != null ? tree.getParent().getId() : JdbcTreeRepositoryImpl.parentId(tree.getNode());
+    }
+
+    private static final class Snapshot {
+
+        private final String name;
+        private final String description;
+        private final Integer parentId;
+        private final Integer order;
+
+        private Snapshot(Tree tree) {
+            Node node = tree.getNode();
+            this.name = node.getName();
+            this.description = node.getDescription();
+            this.parentId = parentId(tree);
+            this.order = node.getOrder();
+        }
+
+        private boolean matches(Tree tree) {
+            Node node = tree.getNode();
+            return Objects.equal(name, node.getName()) &&
+                    Objects.equal(description, node.getDescription()) &&
+                    Objects.equal(parentId, parentId(tree)) &&
+                    Objects.equal(order, node.getOrder());
+        }
+    }
+}
@@ -1,19 +1,31 @@
 package com.github.mwedgwood.service;
 
+import org.apache.tomcat.jdbc.pool.PoolProperties;
 import org.h2.jdbcx.JdbcDataSource;
 import org.postgresql.ds.PGSimpleDataSource;
 import org.skife.jdbi.v2.DBI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
 
 
+/*
+ * Hands out a DBI backed by a connection pool. Settings are read from jdbc-tree.properties on the classpath, if there
+ * is one, and can be overridden with system properties of the same name, e.g. -Djdbc-tree.inMemory=true to run
+ * against an in memory H2 database instead of PostgreSQL.
+ */
 public class PersistenceServiceImpl implements PersistenceService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceServiceImpl.class);
 
-    private DBI dbi;
+    static final String PROPERTIES_RESOURCE = "jdbc-tree.properties";
+    static final String PREFIX = "jdbc-tree.";
+
+    private volatile DBI dbi;
+    private org.apache.tomcat.jdbc.pool.DataSource dataSource;
 
     private PersistenceServiceImpl() {
         initialize();
@@ -33,29 +45,97 @@ public class PersistenceServiceImpl implements PersistenceService {
     }
 
     @Override
-    public void initialize() {
-        dbi = new DBI(getDataSource(false));
+    public synchronized void initialize() {
+        if (dataSource != null) {
+            destroy();
+        }
+        dataSource = createPool(loadProperties());
+        dbi = new DBI(dataSource);
     }
 
     @Override
-    public void destroy() {
+    public synchronized void destroy() {
         dbi = null;
+        if (dataSource != null) {
+            LOGGER.info("Closing connection pool");
+            // Closes idle connections now and borrowed ones as they are returned
+            dataSource.close();
+            dataSource = null;
+        }
+    }
+
+    static Properties loadProperties() {
+        Properties properties = new Properties();
+        try (InputStream in = PersistenceServiceImpl.class.getClassLoader().getResourceAsStream(PROPERTIES_RESOURCE)) {
+            if (in != null) {
+                properties.load(in);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read " + PROPERTIES_RESOURCE, e);
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PREFIX)) {
+                properties.setProperty(name, System.getProperty(name));
+            }
+        }
+        return properties;
     }
 
-    private DataSource getDataSource(boolean useInMemory) {
-        if (useInMemory) {
+    static org.apache.tomcat.jdbc.pool.DataSource createPool(Properties properties) {
+        PoolProperties pool = new PoolProperties();
+        pool.setDataSource(getDataSource(properties));
+
+        int minSize = intProperty(properties, "pool.minSize", 2);
+        int maxSize = intProperty(properties, "pool.maxSize", 10);
+        pool.setInitialSize(minSize);
+        pool.setMinIdle(minSize);
+        pool.setMaxIdle(maxSize);
+        pool.setMaxActive(maxSize);
+        pool.setMaxWait(intProperty(properties, "pool.acquireTimeoutMillis", 30000));
+
+        // Validate on borrow, but at most once per interval for each connection
+        pool.setValidationQuery(property(properties, "pool.validationQuery", "SELECT 1"));
+        pool.setValidationInterval(intProperty(properties, "pool.validationIntervalMillis", 30000));
+        pool.setTestOnBorrow(true);
+        pool.setTestWhileIdle(true);
+
+        int statementCacheSize = intProperty(properties, "pool.statementCacheSize", 200);
+        if (statementCacheSize > 0) {
+            pool.setJdbcInterceptors("StatementCache(prepared=true,callable=false,max=" + statementCacheSize + ")");
+        }
+
+        LOGGER.info("Creating connection pool with {} to {} connections", minSize, maxSize);
+        return new org.apache.tomcat.jdbc.pool.DataSource(pool);
+    }
+
+    private static javax.sql.DataSource getDataSource(Properties properties) {
+        if (Boolean.parseBoolean(property(properties, "inMemory", "false"))) {
             LOGGER.info("Using in memory database");
             JdbcDataSource jdbcDataSource = new JdbcDataSource();
-            jdbcDataSource.setURL("jdbc:h2:mem:test;MODE=PostgreSQL");
+            // Kept open while the pool is shrunk to no connections
+            jdbcDataSource.setURL("jdbc:h2:mem:" + property(properties, "database", "test") + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
             return jdbcDataSource;
         }
         PGSimpleDataSource dataSource = new PGSimpleDataSource();
-        dataSource.setServerName("localhost");
-        dataSource.setPortNumber(15432);
-        dataSource.setDatabaseName("test");
-        dataSource.setUser("postgres");
-        dataSource.setPassword("postgres");
+        dataSource.setServerName(property(properties, "host", "localhost"));
+        dataSource.setPortNumber(intProperty(properties, "port", 15432));
+        dataSource.setDatabaseName(property(properties, "database", "test"));
+        dataSource.setUser(property(properties, "user", "postgres"));
+        dataSource.setPassword(property(properties, "password", "postgres"));
         return dataSource;
     }
 
+    private static String property(Properties properties, String name, String defaultValue) {
+        return properties.getProperty(PREFIX + name, defaultValue).trim();
+    }
+
+    private static int intProperty(Properties properties, String name, int defaultValue) {
+        String value = property(properties, name, String.valueOf(defaultValue));
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number for " + PREFIX + name + " but got '" + value + "'", e);
+        }
+    }
+
 }
@@ -0,0 +1,81 @@
+package com.github.mwedgwood.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * Reuses buffers in power of two size classes, from 4KB up to maxBufferSize, keeping at most buffersPerSize of each.
+ * Bigger requests are allocated and dropped again. Thread safe; a buffer must not be used once it is released.
+ */
+public class ByteBufferPool {
+
+    private static final int MIN_SIZE_BITS = 12;
+
+    private final boolean direct;
+    private final int buffersPerSize;
+    private final Queue<ByteBuffer>[] pools;
+    private final AtomicIntegerArray pooled;
+
+    public ByteBufferPool() {
+        this(false, 1 << 24, 16);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ByteBufferPool(boolean direct, int maxBufferSize, int buffersPerSize) {
+        if (maxBufferSize < 1 << MIN_SIZE_BITS) throw new IllegalArgumentException("maxBufferSize must be at least " + (1 << MIN_SIZE_BITS));
+        this.direct = direct;
+        this.buffersPerSize = buffersPerSize;
+        int sizes = sizeClass(maxBufferSize) + 1;
+        this.pools = new Queue[sizes];
+        for (int i = 0; i < sizes; i++) {
+            pools[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.pooled = new AtomicIntegerArray(sizes);
+    }
+
+    /*
+     * A cleared buffer of at least the given capacity, its limit set to that capacity.
+     */
+    public ByteBuffer acquire(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass >= pools.length) {
+            return allocate(capacity);
+        }
+
+        ByteBuffer buffer = pools[sizeClass].poll();
+        if (buffer == null) {
+            buffer = allocate(1 << (sizeClass + MIN_SIZE_BITS));
+        } else {
+            pooled.decrementAndGet(sizeClass);
+            buffer.clear();
+        }
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (buffer.isDirect() != direct || sizeClass >= pools.length || capacity != 1 << (sizeClass + MIN_SIZE_BITS)) {
+            return;
+        }
+        if (pooled.incrementAndGet(sizeClass) > buffersPerSize) {
+            pooled.decrementAndGet(sizeClass);
+            return;
+        }
+        pools[sizeClass].offer(buffer);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int sizeClass(int capacity) {
+        if (capacity <= 1 << MIN_SIZE_BITS) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SIZE_BITS;
+    }
+}
@@ -6,12 +6,16 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 public class JsonUtil {
 
     private static final ObjectMapper OBJECT_MAPPER =
             configureJsonObjectMapper(new ObjectMapper()).enable(SerializationFeature.INDENT_OUTPUT);
 
+    // Without INDENT_OUTPUT, which would switch a generator it writes values to over to pretty printing
+    private static final ObjectMapper STREAMING_OBJECT_MAPPER = configureJsonObjectMapper(new ObjectMapper());
+
     public static String toJson(Object object) throws IOException {
         return OBJECT_MAPPER.writeValueAsString(object);
     }
@@ -20,6 +24,19 @@ public class JsonUtil {
         return OBJECT_MAPPER.readValue(json, klass);
     }
 
+    /*
+     * A UTF-8 generator with the same settings as toJson, and the same indentation when pretty is set. Closing it
+     * flushes but does not close the stream.
+     */
+    public static JsonGenerator createGenerator(OutputStream out, boolean pretty) throws IOException {
+        JsonGenerator generator = STREAMING_OBJECT_MAPPER.getFactory().createGenerator(out);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        if (pretty) {
+            generator.useDefaultPrettyPrinter();
+        }
+        return generator;
+    }
+
     public static ObjectMapper configureJsonObjectMapper(ObjectMapper objectMapper) {
         // Allow serialization of "empty" POJOs (no properties to serialize)
         // (without this setting, an exception is thrown in those cases)
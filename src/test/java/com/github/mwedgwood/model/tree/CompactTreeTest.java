@@ -0,0 +1,110 @@
+package com.github.mwedgwood.model.tree;
+
+import com.github.mwedgwood.util.JsonUtil;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompactTreeTest {
+
+    // Adds a ComplexNode, a node without an id, a negative order, and two equal descriptions to share
+    private Tree createTree() {
+        Tree root = TestTrees.createTree();
+        ComplexNode complexNode = new ComplexNode();
+        complexNode.setClientId(7);
+        complexNode.setId(7).setParentId(2).setName("child1.3").setDescription("complex").setOrder(2);
+        root.findById(2).addChild(new Tree(complexNode));
+        root.findById(3).addChild(new Tree(new Node().setName("child2.2")));
+        root.findById(6).getNode().setOrder(-1024).setDescription(new String("complex"));
+        return root;
+    }
+
+    @Test
+    public void testConversion() throws Exception {
+        Tree tree = createTree();
+        CompactTree compactTree = CompactTree.fromTree(tree);
+
+        assertEquals(8, compactTree.size());
+        assertEquals(JsonUtil.toJson(tree), JsonUtil.toJson(compactTree.toTree()));
+        assertEquals(JsonUtil.toJson(tree.getChildren().get(1).copy()), JsonUtil.toJson(compactTree.toTree(compactTree.findById(3))));
+        assertSame(compactTree.getDescription(compactTree.findById(7)), compactTree.getDescription(compactTree.findById(6)));
+    }
+
+    @Test
+    public void testNavigation() throws Exception {
+        CompactTree compactTree = CompactTree.fromTree(createTree());
+
+        int child1 = compactTree.findById(2);
+        int child2 = compactTree.findById(3);
+        assertArrayEquals(new int[]{child1, child2}, compactTree.getChildren(0));
+        assertEquals(0, compactTree.getParent(child2));
+        assertEquals(-1, compactTree.getParent(0));
+        assertEquals(child2, compactTree.subtreeEnd(child1));
+        assertEquals(compactTree.size(), compactTree.subtreeEnd(child2));
+        assertEquals(2, compactTree.getDepth(compactTree.findById(6)));
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        Tree tree = createTree();
+        CompactTree compactTree = CompactTree.fromTree(tree);
+
+        assertEquals(-1, compactTree.findById(99));
+        assertEquals(-1, compactTree.findById(null));
+        int complex = compactTree.findById(7);
+        assertEquals("child1.3", compactTree.getName(complex));
+        assertEquals(Integer.valueOf(7), ((ComplexNode) compactTree.getNode(complex)).getClientId());
+        assertEquals(tree.findTree("child1.3").createPath(), compactTree.createPath(complex));
+
+        int[] leaves = compactTree.findLeaves();
+        assertEquals(tree.findLeaves().size(), leaves.length);
+        for (int i = 0; i < leaves.length; i++) {
+            assertEquals(tree.findLeaves().get(i).getNode().getName(), compactTree.getName(leaves[i]));
+        }
+        assertArrayEquals(compactTree.getChildren(compactTree.findById(3)), compactTree.findLeaves(compactTree.findById(3)));
+
+        assertArrayEquals(new int[]{complex}, compactTree.findNodesOfType(ComplexNode.class));
+        assertEquals(7, compactTree.findNodesOfType(Node.class).length);
+        assertEquals(0, compactTree.findNodesOfType(ComplexNode.class, compactTree.findById(3)).length);
+    }
+
+    @Test
+    public void testBuilder() throws Exception {
+        ComplexNode complexNode = new ComplexNode();
+        complexNode.setClientId(7);
+        complexNode.setId(4).setParentId(2).setName("child1.1");
+        // Children before their parents, and out of order
+        List<Node> rows = Arrays.asList(
+                new Node().setId(6).setParentId(3).setName("child2.1").setOrder(null),
+                new Node().setId(5).setParentId(3).setName("child2.2").setOrder(1),
+                complexNode,
+                new Node().setId(3).setParentId(1).setName("child2").setOrder(1),
+                new Node().setId(1).setName("root").setOrder(0),
+                new Node().setId(2).setParentId(1).setName("child1").setOrder(0),
+                new Node().setId(7).setParentId(8).setName("orphan"));
+
+        CompactTree.Builder builder = new CompactTree.Builder(2);
+        TreeBuilder treeBuilder = new TreeBuilder();
+        for (Node row : rows) {
+            builder.add(row);
+            treeBuilder.add(row);
+        }
+        CompactTree compactTree = builder.build();
+
+        assertEquals(6, compactTree.size());
+        assertEquals(JsonUtil.toJson(treeBuilder.build()), JsonUtil.toJson(compactTree.toTree()));
+        assertEquals("root.child2.child2.2", compactTree.createPath(compactTree.findById(5)));
+        assertEquals(ComplexNode.class, compactTree.getType(compactTree.findById(4)));
+        assertEquals(-1, compactTree.findById(7));
+
+        // Without the root, the rows describe the subtree of the first one's topmost ancestor
+        CompactTree subtree = new CompactTree.Builder().add(rows.get(0)).add(rows.get(1)).add(rows.get(3)).build();
+        assertEquals(Integer.valueOf(3), subtree.getId(0));
+        assertArrayEquals(new int[]{subtree.findById(5), subtree.findById(6)}, subtree.getChildren(0));
+
+        assertNull(new CompactTree.Builder().build());
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.mwedgwood.model.tree;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IntObjectMapTest {
+
+    private static final int MASK = 15;
+
+    // The first count keys whose home slot, in a map of 16 slots, is the given one
+    private static List<Integer> keysWithHome(int home, int count) {
+        List<Integer> keys = new ArrayList<>();
+        for (int key = 0; keys.size() < count; key++) {
+            if (IntObjectMap.index(key, MASK) == home) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        IntObjectMap<String> map = new IntObjectMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1, "one"));
+        assertNull(map.put(-1, "minus one"));
+        assertEquals("one", map.put(1, "uno"));
+
+        assertEquals(2, map.size());
+        assertEquals("uno", map.get(1));
+        assertEquals("minus one", map.get(-1));
+        assertNull(map.get(2));
+        assertTrue(map.containsKey(-1));
+
+        assertEquals("uno", map.remove(1));
+        assertNull(map.remove(1));
+        assertEquals(1, map.size());
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(-1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullValue() throws Exception {
+        new IntObjectMap<String>().put(1, null);
+    }
+
+    @Test
+    public void testRemoveWithCollidingKeys() throws Exception {
+        // Three keys probing from the last slot, wrapping around to the start, and one whose home is taken by them
+        List<Integer> colliding = keysWithHome(MASK, 3);
+        int displaced = keysWithHome(1, 1).get(0);
+
+        IntObjectMap<String> map = new IntObjectMap<>();
+        for (int key : colliding) {
+            map.put(key, "key" + key);
+        }
+        map.put(displaced, "displaced");
+
+        // Each removal shifts the rest of the run back over the gap
+        map.remove(colliding.get(0));
+        assertNull(map.get(colliding.get(0)));
+        assertEquals("key" + colliding.get(1), map.get(colliding.get(1)));
+        assertEquals("key" + colliding.get(2), map.get(colliding.get(2)));
+        assertEquals("displaced", map.get(displaced));
+
+        map.remove(colliding.get(2));
+        assertEquals("key" + colliding.get(1), map.get(colliding.get(1)));
+        assertEquals("displaced", map.get(displaced));
+
+        map.remove(colliding.get(1));
+        assertEquals("displaced", map.get(displaced));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testMatchesHashMap() throws Exception {
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        Map<Integer, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(100) - 50;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (int key = -50; key < 50; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+}
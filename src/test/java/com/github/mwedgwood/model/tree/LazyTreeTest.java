@@ -0,0 +1,74 @@
+package com.github.mwedgwood.model.tree;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LazyTreeTest {
+
+    // Every node has three children, with ids 3 * id + 1 to 3 * id + 3, down to id 120
+    private final List<List<Integer>> calls = new ArrayList<>();
+    private final ChildLoader loader = new ChildLoader() {
+        @Override
+        public Map<Integer, List<Node>> loadChildren(List<Integer> parentIds) {
+            calls.add(parentIds);
+            Map<Integer, List<Node>> children = new HashMap<>();
+            for (Integer parentId : parentIds) {
+                List<Node> nodes = new ArrayList<>();
+                for (int id = 3 * parentId + 1; id <= 3 * parentId + 3 && id <= 120; id++) {
+                    nodes.add(new Node().setId(id).setParentId(parentId).setName(String.valueOf(id)).setOrder(id));
+                }
+                children.put(parentId, nodes);
+            }
+            return children;
+        }
+    };
+
+    @Test
+    public void testLoadsSiblingsTogether() throws Exception {
+        Tree root = Tree.lazy(new Node().setId(0).setName("0"), loader, 1);
+        assertTrue(calls.isEmpty());
+
+        List<Tree> children = root.getChildren();
+        assertEquals(3, children.size());
+        assertEquals(1, calls.size());
+
+        children.get(0).getChildren();
+        children.get(1).getChildren();
+        children.get(2).getChildren();
+        assertEquals(2, calls.size());
+        assertEquals(3, calls.get(1).size());
+        assertEquals("3.2", children.get(2).getChildren().get(1).getLevel());
+    }
+
+    @Test
+    public void testPrefetchDepth() throws Exception {
+        Tree root = Tree.lazy(new Node().setId(0).setName("0"), loader, 2);
+
+        Tree grandChild = root.getChildren().get(1).getChildren().get(2);
+        assertEquals(2, calls.size());
+        assertTrue(root.getChildren().get(2).isLoaded());
+        assertFalse(grandChild.isLoaded());
+        assertEquals("0.2.9", grandChild.createPath());
+
+        // A depth first walk expands one group of siblings at a time: the three groups below the first level take two
+        // calls each, and the 27 groups on the fourth level one each to find they have no children
+        assertEquals(121, root.toList().size());
+        assertEquals(2 + 3 * 2 + 27, calls.size());
+        assertEquals(81, root.findLeaves().size());
+        assertSame(grandChild, root.findById(9));
+    }
+
+    @Test
+    public void testAddChildLoadsFirst() throws Exception {
+        Tree root = Tree.lazy(new Node().setId(0).setName("0"), loader, 1);
+        root.addNode(new Node().setName("new"));
+        assertEquals(4, root.getChildren().size());
+        assertEquals("new", root.getChildren().get(3).getNode().getName());
+    }
+}
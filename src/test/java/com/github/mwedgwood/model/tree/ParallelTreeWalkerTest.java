@@ -0,0 +1,98 @@
+package com.github.mwedgwood.model.tree;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ParallelTreeWalkerTest {
+
+    // A small threshold, so even this tree is split into many tasks
+    private final ParallelTreeWalker walker = new ParallelTreeWalker(new ForkJoinPool(4), 8);
+
+    private static Predicate<Tree> divisibleBy(final int divisor) {
+        return new Predicate<Tree>() {
+            @Override
+            public boolean apply(Tree tree) {
+                return tree.getId() % divisor == 0;
+            }
+        };
+    }
+
+    @Test
+    public void testMatchesSequential() throws Exception {
+        Tree tree = TestTrees.createTree(4, 6);
+
+        List<Tree> expected = new ArrayList<>();
+        for (Tree subtree : tree.preOrder()) {
+            if (subtree.getId() % 3 == 0) {
+                expected.add(subtree);
+            }
+        }
+
+        assertEquals(expected, walker.filter(tree, divisibleBy(3)));
+        assertEquals(expected.size(), walker.count(tree, divisibleBy(3)));
+        assertSame(tree.findTree("1"), walker.find(tree.findTree("1"), divisibleBy(1)));
+        assertSame(expected.get(1), walker.find(tree, new Predicate<Tree>() {
+            @Override
+            public boolean apply(Tree tree) {
+                return tree.getId() > 0 && tree.getId() % 3 == 0;
+            }
+        }));
+        assertNull(walker.find(tree, new Predicate<Tree>() {
+            @Override
+            public boolean apply(Tree tree) {
+                return tree.getId() < 0;
+            }
+        }));
+        assertEquals(tree.findLeaves(), walker.findLeaves(tree));
+        assertEquals(tree.findNodesOfType(ComplexNode.class).size(), walker.findNodesOfType(tree, ComplexNode.class).size());
+    }
+
+    @Test
+    public void testDeepChain() throws Exception {
+        Tree root = new Tree(new Node().setId(0).setName("0"));
+        Tree tree = root;
+        for (int i = 1; i < 100000; i++) {
+            Tree child = new Tree(new Node().setId(i).setName(String.valueOf(i)));
+            tree.addChild(child);
+            tree = child;
+        }
+
+        // Even one node a step doesn't nest tasks down the chain
+        ParallelTreeWalker walker = new ParallelTreeWalker(new ForkJoinPool(4), 1);
+        assertEquals(100000, walker.count(root, divisibleBy(1)));
+        assertSame(tree, walker.find(root, new Predicate<Tree>() {
+            @Override
+            public boolean apply(Tree tree) {
+                return tree.getId() == 99999;
+            }
+        }));
+        assertEquals(1, walker.findLeaves(root).size());
+    }
+
+    @Test
+    public void testReduce() throws Exception {
+        Tree tree = TestTrees.createTree(3, 10);
+
+        Long sum = walker.reduce(tree, 0L, new Function<Tree, Long>() {
+            @Override
+            public Long apply(Tree tree) {
+                return (long) tree.getId();
+            }
+        }, new ParallelTreeWalker.Combiner<Long>() {
+            @Override
+            public Long combine(Long left, Long right) {
+                return left + right;
+            }
+        });
+
+        int size = tree.toList().size();
+        assertEquals((long) size * (size - 1) / 2, sum.longValue());
+    }
+}
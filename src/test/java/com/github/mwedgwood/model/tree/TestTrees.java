@@ -0,0 +1,63 @@
+package com.github.mwedgwood.model.tree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The trees the model tests start from; each test adds its own variations.
+ */
+final class TestTrees {
+
+    private TestTrees() {
+    }
+
+    /*
+     * root(1)
+     * ├── child1(2)
+     * │   ├── child1.1(4)
+     * │   └── child1.2(5)
+     * └── child2(3)
+     *     └── child2.1(6)
+     *
+     * Every node has its parent's id, and its position among its siblings as order.
+     */
+    static Tree createTree() {
+        Tree root = tree(1, null, "root", 0);
+        Tree child1 = tree(2, 1, "child1", 0);
+        Tree child2 = tree(3, 1, "child2", 1);
+        root.addChild(child1);
+        root.addChild(child2);
+        child1.addChild(tree(4, 2, "child1.1", 0));
+        child1.addChild(tree(5, 2, "child1.2", 1));
+        child2.addChild(tree(6, 3, "child2.1", 0));
+        return root;
+    }
+
+    /*
+     * A complete tree of fanOut children a node, numbered breadth first from the root's 0, with the number as id and
+     * name. Every seventh node is a ComplexNode.
+     */
+    static Tree createTree(int depth, int fanOut) {
+        Tree root = new Tree(new Node().setId(0).setName("0"));
+        List<Tree> level = new ArrayList<>();
+        level.add(root);
+        int id = 1;
+        for (int d = 1; d <= depth; d++) {
+            List<Tree> next = new ArrayList<>();
+            for (Tree parent : level) {
+                for (int i = 0; i < fanOut; i++) {
+                    Node node = id % 7 == 0 ? new ComplexNode() : new Node();
+                    Tree child = new Tree(node.setId(id).setName(String.valueOf(id++)));
+                    parent.addChild(child);
+                    next.add(child);
+                }
+            }
+            level = next;
+        }
+        return root;
+    }
+
+    private static Tree tree(int id, Integer parentId, String name, int order) {
+        return new Tree(new Node().setId(id).setParentId(parentId).setName(name).setOrder(order));
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.mwedgwood.model.tree;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TreeBuilderTest {
+
+    private static Node node(Integer id, Integer parentId, Integer order) {
+        return new Node().setId(id).setParentId(parentId).setOrder(order).setName(String.valueOf(id));
+    }
+
+    private static List<String> names(List<Tree> trees) {
+        List<String> names = new ArrayList<>();
+        for (Tree tree : trees) {
+            names.add(tree.getNode().getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testOutOfOrderRows() throws Exception {
+        // Grandchildren before their parents, and the root last
+        Tree tree = new TreeBuilder()
+                .add(node(5, 3, 0))
+                .add(node(4, 2, 0))
+                .add(node(3, 1, 1))
+                .add(node(2, 1, 0))
+                .add(node(1, null, 0))
+                .build();
+
+        assertEquals("1", tree.getNode().getName());
+        assertEquals(Arrays.asList("2", "3"), names(tree.getChildren()));
+        assertEquals(Arrays.asList("4"), names(tree.getChildren().get(0).getChildren()));
+        assertEquals(Arrays.asList("5"), names(tree.getChildren().get(1).getChildren()));
+        assertSame(tree, tree.getChildren().get(1).getChildren().get(0).findRoot());
+    }
+
+    @Test
+    public void testSiblingOrder() throws Exception {
+        Tree tree = new TreeBuilder()
+                .add(node(1, null, 0))
+                .add(node(6, 1, null))
+                .add(node(5, 1, 1))
+                .add(node(4, 1, null))
+                .add(node(3, 1, 1))
+                .add(node(2, 1, 2))
+                .add(node(7, 1, 0))
+                .build();
+
+        // By order, ties by id, nulls last
+        assertEquals(Arrays.asList("7", "3", "5", "2", "4", "6"), names(tree.getChildren()));
+    }
+
+    @Test
+    public void testSubtreeRows() throws Exception {
+        // No row without a parent id, as when the rows are a subtree of a bigger tree
+        Tree tree = new TreeBuilder()
+                .add(node(3, 2, 0))
+                .add(node(2, 1, 0))
+                .add(node(4, 2, 1))
+                .build();
+
+        assertEquals("2", tree.getNode().getName());
+        assertEquals(Arrays.asList("3", "4"), names(tree.getChildren()));
+    }
+
+    @Test
+    public void testOrphans() throws Exception {
+        TreeBuilder builder = new TreeBuilder()
+                .add(node(1, null, 0))
+                .add(node(2, 1, 0))
+                .add(node(3, 99, 0))
+                .add(node(4, 3, 0));
+        Tree tree = builder.build();
+
+        // The row whose parent never arrived stays detached, though its own child is attached to it
+        assertEquals(2, tree.toList().size());
+        assertNull(tree.findById(3));
+        assertNull(tree.findById(4));
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        assertNull(new TreeBuilder().build());
+        assertNull(Tree.fromList(new ArrayList<Node>()));
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.mwedgwood.model.tree;
+
+import com.github.mwedgwood.util.ByteBufferPool;
+import com.github.mwedgwood.util.JsonUtil;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TreeCodecTest {
+
+    // The extremes of every field: a negative order, the largest ids, non-ASCII and repeated strings, and nulls
+    private Tree createTree() {
+        Tree root = TestTrees.createTree();
+        root.getNode().setDescription("the root");
+        root.findById(2).getNode().setOrder(-1024);
+        ComplexNode complexNode = new ComplexNode();
+        complexNode.setClientId(Integer.MIN_VALUE);
+        complexNode.setId(Integer.MAX_VALUE).setParentId(2).setName("caf\u00e9").setDescription("the root");
+        root.findById(2).addChild(new Tree(complexNode));
+        root.addChild(new Tree(new Node().setName("child")));
+        return root;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Tree tree = createTree();
+        TreeCodec codec = new TreeCodec();
+
+        byte[] bytes = codec.toBytes(tree);
+        Tree decoded = codec.fromBytes(bytes);
+
+        assertEquals(JsonUtil.toJson(tree), JsonUtil.toJson(decoded));
+        assertEquals(ComplexNode.class, decoded.findTree("caf\u00e9").getNode().getClass());
+        assertSame(decoded.getChildren().get(0), decoded.findById(Integer.MAX_VALUE).getParent());
+        assertTrue(bytes.length < JsonUtil.toJson(tree).length() / 4);
+    }
+
+    @Test
+    public void testPooledBuffers() throws Exception {
+        Tree tree = createTree();
+        TreeCodec codec = new TreeCodec(new ByteBufferPool(true, 1 << 16, 1));
+
+        ByteBuffer first = codec.encode(tree);
+        assertEquals(codec.toBytes(tree).length, first.remaining());
+        assertEquals(JsonUtil.toJson(tree), JsonUtil.toJson(codec.decode(first)));
+        assertFalse(first.hasRemaining());
+        codec.release(first);
+
+        ByteBuffer second = codec.encode(tree.getChildren().get(0));
+        assertSame(first, second);
+        assertEquals(JsonUtil.toJson(tree.getChildren().get(0).copy()), JsonUtil.toJson(codec.decode(second)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncated() throws Exception {
+        TreeCodec codec = new TreeCodec();
+        byte[] bytes = codec.toBytes(createTree());
+        codec.decode(ByteBuffer.wrap(bytes, 0, bytes.length - 1));
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.mwedgwood.model.tree;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TreeTest {
+
+    // move() and addChild(tree, order) renumber the siblings, which need an order
+    private static Tree tree(int id, String name) {
+        return new Tree(new Node().setId(id).setName(name).setOrder(0));
+    }
+
+    @Test
+    public void testFindById() throws Exception {
+        Tree root = TestTrees.createTree();
+        Tree child1 = root.findById(2);
+
+        assertEquals("child1", child1.getNode().getName());
+        assertEquals("child2.1", root.findById(6).getNode().getName());
+        assertEquals("child1.2", child1.findById(5).getNode().getName());
+        // Only the subtree below the node is searched
+        assertNull(child1.findById(6));
+        assertNull(root.findById(99));
+        assertNull(root.findById(null));
+    }
+
+    @Test
+    public void testIndexFollowsAddAndRemove() throws Exception {
+        Tree root = TestTrees.createTree();
+        Tree child2 = root.findById(3);
+
+        root.findById(4).addChild(tree(7, "child1.1.1"));
+        child2.addNode(new Node().setId(8).setName("child2.2").setOrder(1));
+        assertEquals("child1.1.1", root.findById(7).getNode().getName());
+        assertEquals("child2.2", root.findById(8).getNode().getName());
+        assertEquals("child2.2", child2.findById(8).getNode().getName());
+
+        root.removeTree(child2);
+        assertNull(root.findById(3));
+        assertNull(root.findById(6));
+        assertNull(root.findById(8));
+        // The removed subtree has an index of its own
+        assertSame(child2, child2.findById(3));
+        assertEquals("child2.1", child2.findById(6).getNode().getName());
+
+        Tree other = tree(10, "other");
+        other.findById(10);
+        other.addChild(child2);
+        assertSame(child2, other.findById(3));
+        assertEquals("child2.2", other.findById(8).getNode().getName());
+    }
+
+    @Test
+    public void testIndexFollowsMove() throws Exception {
+        Tree root = TestTrees.createTree();
+        Tree child1 = root.findById(2);
+        Tree child2 = root.findById(3);
+        Tree child11 = root.findById(4);
+
+        // Within the tree
+        child11.move(child2, 0);
+        assertSame(child11, root.findById(4));
+        assertSame(child11, child2.findById(4));
+        assertNull(child1.findById(4));
+
+        // To another indexed tree
+        Tree other = tree(10, "other");
+        other.findById(10);
+        child1.move(other, 0);
+        assertNull(root.findById(2));
+        assertNull(root.findById(5));
+        assertSame(child1, other.findById(2));
+        assertEquals("child1.2", other.findById(5).getNode().getName());
+    }
+
+    @Test
+    public void testChangedIds() throws Exception {
+        Tree root = TestTrees.createTree();
+        Tree child1 = root.findById(2);
+
+        child1.changeId(7);
+        assertSame(child1, root.findById(7));
+        assertNull(root.findById(2));
+
+        root.findById(5).changeId(2);
+        assertEquals("child1.2", root.findById(2).getNode().getName());
+        assertSame(child1, root.findById(7));
+
+        // As saving a tree does, after it was indexed
+        root.findById(6).getNode().setId(8);
+        root.reindex();
+        assertEquals("child2.1", root.findById(8).getNode().getName());
+        assertNull(root.findById(6));
+    }
+
+    @Test
+    public void testCachedValuesFollowChanges() throws Exception {
+        Tree root = TestTrees.createTree();
+        Tree child1 = root.findById(2);
+        Tree child2 = root.findById(3);
+        Tree child21 = root.findById(6);
+
+        assertEquals("2.1", child21.getLevel());
+        assertEquals("root.child2.child2.1", child21.createPath());
+        assertEquals(2, child21.getDepth().intValue());
+
+        // Inserting before a sibling renumbers it and its subtree
+        root.addChild(tree(7, "child0"), 0);
+        assertEquals("3", child2.getLevel());
+        assertEquals("3.1", child21.getLevel());
+        assertEquals("2", child1.getLevel());
+
+        // Removing renumbers the siblings after it, and the removed subtree becomes a tree of its own
+        root.removeTree(child1);
+        assertEquals("2.1", child21.getLevel());
+        assertEquals("", child1.getLevel());
+        assertEquals("child1.child1.2", child1.findById(5).createPath());
+        assertEquals(1, child1.findById(5).getDepth().intValue());
+
+        // Moving changes the path and depth of the whole subtree
+        child2.move(root.findById(7), 0);
+        assertEquals("1.1.1", child21.getLevel());
+        assertEquals("root.child0.child2.child2.1", child21.createPath());
+        assertEquals(3, child21.getDepth().intValue());
+
+        // Adding to another tree
+        Tree other = tree(10, "other");
+        other.addChild(child1);
+        assertEquals("1.2", child1.findById(5).getLevel());
+        assertEquals("other.child1.child1.2", child1.findById(5).createPath());
+        assertEquals(2, child1.findById(5).getDepth().intValue());
+
+        // Renaming needs reindex()
+        root.getNode().setName("renamed");
+        root.reindex();
+        assertEquals("renamed.child0.child2.child2.1", child21.createPath());
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.mwedgwood.model.tree;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class TreeTraversalTest {
+
+    private static List<String> names(Iterable<Tree> trees) {
+        List<String> names = new ArrayList<>();
+        for (Tree tree : trees) {
+            names.add(tree.getNode().getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testOrders() throws Exception {
+        Tree tree = TestTrees.createTree();
+
+        assertEquals("[root, child1, child1.1, child1.2, child2, child2.1]", names(tree.preOrder()).toString());
+        assertEquals("[child1.1, child1.2, child1, child2.1, child2, root]", names(tree.postOrder()).toString());
+        assertEquals("[root, child1, child2, child1.1, child1.2, child2.1]", names(tree.breadthFirst()).toString());
+        assertEquals("[child2, child2.1]", names(tree.findTree("child2").preOrder()).toString());
+        assertEquals("[child1.1, child1.2, child2.1]", names(tree.findLeaves()).toString());
+    }
+
+    @Test
+    public void testStreams() throws Exception {
+        Tree tree = TestTrees.createTree();
+
+        assertEquals(names(tree.preOrder()), names(tree.preOrderStream().collect(Collectors.<Tree>toList())));
+        assertEquals(names(tree.postOrder()), names(tree.postOrderStream().collect(Collectors.<Tree>toList())));
+        assertEquals(names(tree.breadthFirst()), names(tree.breadthFirstStream().collect(Collectors.<Tree>toList())));
+        assertEquals(3, tree.preOrderStream().filter(new Predicate<Tree>() {
+            @Override
+            public boolean test(Tree t) {
+                return !t.hasChildren();
+            }
+        }).count());
+    }
+
+    @Test
+    public void testEarlyTermination() throws Exception {
+        Iterator<Tree> iterator = TestTrees.createTree().postOrder().iterator();
+        assertEquals("child1.1", iterator.next().getNode().getName());
+        assertEquals("child1.2", iterator.next().getNode().getName());
+        assertTrue(iterator.hasNext());
+    }
+
+    @Test
+    public void testPrettyPrint() throws Exception {
+        assertEquals("└── root\n" +
+                "    ├── child1\n" +
+                "    │   ├── child1.1\n" +
+                "    │   └── child1.2\n" +
+                "    └── child2\n" +
+                "        └── child2.1", TestTrees.createTree().prettyPrint());
+    }
+
+    @Test
+    public void testDeepChain() throws Exception {
+        Tree root = new Tree(new Node().setName("0"));
+        Tree tree = root;
+        for (int i = 1; i < 100000; i++) {
+            Tree child = new Tree(new Node().setName(String.valueOf(i)));
+            tree.addChild(child);
+            tree = child;
+        }
+
+        assertEquals(100000, root.toList().size());
+        assertSame(tree, root.findTree("99999"));
+        assertEquals(1, root.findLeaves().size());
+        assertSame(root, last(root.postOrder()));
+
+        StringBuilder out = new StringBuilder();
+        root.findTree("98000").prettyPrint(out);
+        assertTrue(out.toString().endsWith("└── 99999\n"));
+    }
+
+    private static Tree last(Iterable<Tree> trees) {
+        Tree last = null;
+        for (Tree tree : trees) {
+            last = tree;
+        }
+        return last;
+    }
+}
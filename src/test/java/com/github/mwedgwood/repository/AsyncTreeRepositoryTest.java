@@ -0,0 +1,182 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import com.github.mwedgwood.service.PersistenceServiceImpl;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class AsyncTreeRepositoryTest {
+
+    final DBI dbi = PersistenceServiceImpl.getInstance().getDbi();
+
+    @Test
+    public void testOperations() throws Exception {
+        dbi.withHandle(new HandleCallback<Object>() {
+            @Override
+            public Object withHandle(Handle handle) throws Exception {
+                JdbcTreeRepositoryImplTest.reCreateTreeTable(handle);
+                return null;
+            }
+        });
+
+        try (AsyncTreeRepository repository = new AsyncTreeRepository(new JdbcTreeRepositoryImpl(dbi), 2, 10)) {
+            Tree tree = Tree.createRoot("root", null, Node.class);
+            tree.addNode(new Node().setName("child").setOrder(0));
+
+            Tree found = repository.save(tree)
+                    .thenCompose(saved -> repository.findEntireTree(saved.getId()))
+                    .get(10, TimeUnit.SECONDS);
+            assertEquals("child", found.getChildren().get(0).getNode().getName());
+
+            Integer childId = found.getChildren().get(0).getId();
+            assertEquals(2, repository.findEntireTrees(Arrays.asList(tree.getId(), childId)).get(10, TimeUnit.SECONDS).size());
+            assertEquals(0, repository.findByIdsForDepth(Arrays.asList(tree.getId()), 1).get(10, TimeUnit.SECONDS)
+                    .get(tree.getId()).getChildren().size());
+            assertEquals("child", repository.findLazyTree(tree.getId(), 1).get(10, TimeUnit.SECONDS)
+                    .getChildren().get(0).getNode().getName());
+            assertEquals("child", repository.findChildren(tree.getId()).get(10, TimeUnit.SECONDS).get(0).getNode().getName());
+            assertTrue(repository.findChildren(tree.getId(), 2, 1).get(10, TimeUnit.SECONDS).isEmpty());
+
+            assertEquals(Integer.valueOf(2), repository.deleteSubtree(tree.getId()).get(10, TimeUnit.SECONDS));
+            assertNull(repository.findById(tree.getId()).get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testInterruptedWhileWaiting() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        JdbcTreeRepositoryImpl blocking = new JdbcTreeRepositoryImpl(dbi) {
+            @Override
+            public Tree findById(Integer id) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            }
+        };
+
+        // Records the threads as they take their tasks, and whether the second task left its thread interrupted
+        final List<Thread> threads = new CopyOnWriteArrayList<>();
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        final CountDownLatch finished = new CountDownLatch(1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            protected void beforeExecute(Thread thread, Runnable runnable) {
+                threads.add(thread);
+            }
+
+            @Override
+            protected void afterExecute(Runnable runnable, Throwable failure) {
+                if (Thread.currentThread() == threads.get(1)) {
+                    interrupted.set(Thread.currentThread().isInterrupted());
+                    finished.countDown();
+                }
+            }
+        };
+
+        try (AsyncTreeRepository repository = new AsyncTreeRepository(blocking, executor, 1, 1)) {
+            CompletableFuture<Tree> running = repository.findById(1);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            CompletableFuture<Tree> waiting = repository.findById(2);
+            while (threads.size() < 2) {
+                Thread.sleep(10);
+            }
+
+            threads.get(1).interrupt();
+            try {
+                waiting.get(10, TimeUnit.SECONDS);
+                fail("Expected the waiting operation to be interrupted");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof InterruptedException);
+            }
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+            assertTrue(interrupted.get());
+
+            release.countDown();
+            assertNull(running.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRejectsWhenFull() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        JdbcTreeRepositoryImpl blocking = new JdbcTreeRepositoryImpl(dbi) {
+            @Override
+            public Tree findById(Integer id) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            }
+        };
+
+        try (AsyncTreeRepository repository = new AsyncTreeRepository(blocking, 1, 1)) {
+            CompletableFuture<Tree> running = repository.findById(1);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            CompletableFuture<Tree> queued = repository.findById(2);
+            CompletableFuture<Tree> rejected = repository.findById(3);
+            assertEquals(2, repository.getPending());
+
+            try {
+                rejected.get();
+                fail("Expected the third operation to be rejected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+
+            release.countDown();
+            assertNull(running.get(10, TimeUnit.SECONDS));
+            assertNull(queued.get(10, TimeUnit.SECONDS));
+            assertEquals(0, repository.getPending());
+        }
+    }
+
+    @Test
+    public void testRejectsWhenClosed() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AsyncTreeRepository repository = new AsyncTreeRepository(new JdbcTreeRepositoryImpl(dbi), executor, 1, 1);
+            repository.close();
+            // The shared executor is still running, but the repository takes nothing more
+            assertFalse(executor.isShutdown());
+            try {
+                repository.findById(1).get(10, TimeUnit.SECONDS);
+                fail("Expected the operation to be rejected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            assertEquals(0, repository.getPending());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CachingTreeRepositoryTest extends JdbcTreeRepositoryImplTest {
+
+    @Override
+    TreeRepository createRepository() {
+        return new CachingTreeRepository(new JdbcTreeRepositoryImpl(dbi), 1000, 1, TimeUnit.MINUTES);
+    }
+
+    @Test
+    public void testCachedTreesAreCopies() throws Exception {
+        CachingTreeRepository repository = new CachingTreeRepository(new JdbcTreeRepositoryImpl(dbi), 1000, 1, TimeUnit.MINUTES);
+
+        Tree first = repository.findEntireTree(rootId);
+        first.getNode().setName("changed");
+        Tree second = repository.findEntireTree(rootId);
+
+        assertEquals("root", second.getNode().getName());
+        assertEquals(1, repository.stats().hitCount());
+        assertEquals(1, repository.stats().missCount());
+    }
+
+    @Test
+    public void testSaveInvalidatesAncestors() throws Exception {
+        CachingTreeRepository repository = new CachingTreeRepository(new JdbcTreeRepositoryImpl(dbi), 1000, 1, TimeUnit.MINUTES);
+
+        Tree childTwo = repository.findEntireTree(rootId).getChildren().get(1);
+        repository.findEntireTree(childOneId);
+        repository.findEntireTree(childTwo.getId());
+        assertEquals(3, repository.size());
+
+        repository.save(new Tree(new Node().setName("child1.2").setParentId(childOneId).setOrder(1)));
+
+        assertEquals(1, repository.size());
+        assertEquals(2, repository.findEntireTree(childOneId).getChildren().size());
+        assertEquals(2, repository.findEntireTree(rootId).getChildren().get(0).getChildren().size());
+    }
+
+    @Test
+    public void testDeleteInvalidatesDescendants() throws Exception {
+        CachingTreeRepository repository = new CachingTreeRepository(new JdbcTreeRepositoryImpl(dbi), 1000, 1, TimeUnit.MINUTES);
+
+        Tree childOne = repository.findEntireTree(rootId).getChildren().get(0);
+        Tree childTwo = repository.findEntireTree(rootId).getChildren().get(1);
+        repository.findEntireTree(childOne.getChildren().get(0).getId());
+        repository.findEntireTree(childTwo.getId());
+        assertEquals(3, repository.size());
+
+        repository.delete(new Tree(new Node().setId(childOneId)));
+
+        assertEquals(1, repository.size());
+        assertNotNull(repository.findEntireTree(childTwo.getId()));
+    }
+
+    @Test
+    public void testDeleteSubtreeInvalidatesDescendants() throws Exception {
+        CachingTreeRepository repository = new CachingTreeRepository(new JdbcTreeRepositoryImpl(dbi), 1000, 1, TimeUnit.MINUTES);
+
+        Tree childOne = repository.findEntireTree(rootId).getChildren().get(0);
+        Tree childTwo = repository.findEntireTree(rootId).getChildren().get(1);
+        repository.findEntireTree(childOne.getChildren().get(0).getId());
+        repository.findEntireTree(childTwo.getId());
+        assertEquals(3, repository.size());
+
+        // The cached root lists the subtree, so only the entries holding part of it go
+        repository.deleteSubtree(childOneId);
+        assertEquals(1, repository.size());
+        assertEquals(1, repository.findEntireTree(rootId).getChildren().size());
+
+        // Only a depth limited copy of child2 is cached, which may not list the whole subtree, so everything goes
+        repository.invalidateAll();
+        repository.findEntireTree(childTwo.getChildren().get(0).getId());
+        assertEquals(1, repository.findByIdForDepth(childTwo.getId(), 2).getChildren().size());
+        assertEquals(2, repository.size());
+        repository.deleteSubtree(childTwo.getId(), 10);
+        assertEquals(0, repository.size());
+    }
+
+    @Test
+    public void testMoveInvalidatesRenumberedSiblings() throws Exception {
+        CachingTreeRepository repository = new CachingTreeRepository(new JdbcTreeRepositoryImpl(dbi), 1000, 1, TimeUnit.MINUTES);
+
+        Tree childOne = repository.findEntireTree(rootId).getChildren().get(0);
+        Integer childTwoId = repository.findEntireTree(rootId).getChildren().get(1).getId();
+        repository.findEntireTree(childTwoId);
+        assertEquals(2, repository.size());
+
+        // child1 and child2 have adjacent orders, so there is no room between them without renumbering
+        assertTrue(repository.move(childOne.getChildren().get(0).getId(), rootId, 1));
+        assertEquals(0, repository.size());
+        assertEquals(new JdbcTreeRepositoryImpl(dbi).findById(childTwoId).getNode().getOrder(),
+                repository.findEntireTree(childTwoId).getNode().getOrder());
+
+        // Now there is room, and the entry rooted at the sibling stays
+        assertFalse(repository.move(childOneId, rootId, 2));
+        assertEquals(1, repository.size());
+    }
+
+    @Test
+    public void testEvictsBySize() throws Exception {
+        CachingTreeRepository repository = new CachingTreeRepository(new JdbcTreeRepositoryImpl(dbi), 5, 1, TimeUnit.MINUTES);
+
+        repository.findEntireTree(rootId);
+        repository.findEntireTree(childOneId);
+
+        assertEquals(1, repository.size());
+        assertEquals(1, repository.stats().evictionCount());
+    }
+}
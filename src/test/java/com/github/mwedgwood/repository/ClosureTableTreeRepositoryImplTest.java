@@ -0,0 +1,80 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.skife.jdbi.v2.util.IntegerMapper;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ClosureTableTreeRepositoryImplTest extends JdbcTreeRepositoryImplTest {
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        dbi.withHandle(new HandleCallback<Object>() {
+            @Override
+            public Object withHandle(Handle handle) throws Exception {
+                reCreateClosureTable(handle);
+                return null;
+            }
+        });
+        new ClosureTableTreeRepositoryImpl(dbi).rebuild();
+    }
+
+    @Override
+    TreeRepository createRepository() {
+        return new ClosureTableTreeRepositoryImpl(dbi);
+    }
+
+    @Test
+    public void testFindAncestors() throws Exception {
+        ClosureTableTreeRepositoryImpl repository = new ClosureTableTreeRepositoryImpl(dbi);
+
+        Integer grandChildId = repository.findEntireTree(childOneId).getChildren().get(0).getId();
+        Tree ancestors = repository.findAncestors(grandChildId);
+
+        assertEquals("root", ancestors.getNode().getName());
+        assertEquals("root.child1.child1.1", ancestors.findById(grandChildId).createPath());
+    }
+
+    @Test
+    public void testBulkLoadOnlyAddsRowsForLoadedNodes() throws Exception {
+        // Written behind the repository's back, so it has no closure rows
+        final Integer strayId = dbi.withHandle(new HandleCallback<Integer>() {
+            @Override
+            public Integer withHandle(Handle handle) throws Exception {
+                return handle.createStatement("INSERT INTO tree (name, parent_id, children_order) VALUES ('stray', :parentId, 5)")
+                        .bind("parentId", childOneId)
+                        .executeAndReturnGeneratedKeys(IntegerMapper.FIRST)
+                        .first();
+            }
+        });
+
+        TreeRepository repository = createRepository();
+        repository.bulkLoad(Arrays.asList(
+                new Node().setId(-1).setParentId(childOneId).setName("loaded").setOrder(1),
+                new Node().setId(-2).setParentId(-1).setName("loaded child").setOrder(0)).iterator());
+
+        Tree tree = repository.findEntireTree(rootId);
+        assertEquals("root.child1.loaded.loaded child", tree.findTree("loaded child").createPath());
+        assertNull(tree.findById(strayId));
+    }
+
+    static void reCreateClosureTable(Handle handle) {
+        handle.execute("DROP TABLE IF EXISTS tree_closure");
+
+        handle.execute("CREATE TABLE tree_closure ( \n" +
+                "\tancestor_id integer NOT NULL, \n" +
+                "\tdescendant_id integer NOT NULL, \n" +
+                "\tdepth integer NOT NULL, \n" +
+                "\tPRIMARY KEY (ancestor_id, descendant_id))");
+        handle.execute("CREATE INDEX tree_closure_descendant ON tree_closure (descendant_id, depth)");
+    }
+}
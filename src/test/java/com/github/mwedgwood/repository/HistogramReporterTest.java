@@ -0,0 +1,111 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import com.github.mwedgwood.service.PersistenceServiceImpl;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HistogramReporterTest {
+
+    final DBI dbi = PersistenceServiceImpl.getInstance().getDbi();
+
+    @Test
+    public void testRecordsRepositoryOperations() throws Exception {
+        dbi.withHandle(new HandleCallback<Object>() {
+            @Override
+            public Object withHandle(Handle handle) throws Exception {
+                JdbcTreeRepositoryImplTest.reCreateTreeTable(handle);
+                return null;
+            }
+        });
+
+        HistogramReporter reporter = new HistogramReporter();
+        JdbcTreeRepositoryImpl repository = new JdbcTreeRepositoryImpl(dbi);
+        repository.setListener(reporter);
+
+        Tree tree = new Tree(new Node().setName("root").setOrder(0));
+        tree.addNode(new Node().setName("child1").setOrder(0));
+        tree.addNode(new Node().setName("child2").setOrder(1));
+        repository.save(tree);
+        repository.findEntireTree(tree.getId());
+        repository.findEntireTree(tree.getId());
+
+        HistogramReporter.Histogram rows = reporter.getHistogram("findEntireTree", HistogramReporter.ROWS);
+        assertEquals(2, rows.getCount());
+        assertEquals(3, rows.getMax());
+        assertTrue(reporter.getHistogram("findEntireTree", HistogramReporter.TOTAL).getMax() > 0);
+        assertEquals(3, reporter.getHistogram("save", HistogramReporter.ROWS).getMax());
+        assertNull(reporter.getHistogram("findById", HistogramReporter.TOTAL));
+
+        assertTrue(reporter.dump().contains("findEntireTree: 2 operations, 0 failed"));
+
+        repository.setListener(null);
+        repository.findEntireTree(tree.getId());
+        assertEquals(2, reporter.getHistogram("findEntireTree", HistogramReporter.ROWS).getCount());
+    }
+
+    @Test
+    public void testFailingListener() throws Exception {
+        dbi.withHandle(new HandleCallback<Object>() {
+            @Override
+            public Object withHandle(Handle handle) throws Exception {
+                JdbcTreeRepositoryImplTest.reCreateTreeTable(handle);
+                return null;
+            }
+        });
+
+        final List<OperationMetrics> reported = new ArrayList<>();
+        JdbcTreeRepositoryImpl repository = new JdbcTreeRepositoryImpl(dbi);
+        repository.setListener(new RepositoryListener() {
+            @Override
+            public void operationCompleted(OperationMetrics metrics) {
+                reported.add(metrics);
+                throw new IllegalStateException("listener failed");
+            }
+        });
+
+        Tree tree = new Tree(new Node().setName("root").setOrder(0));
+        repository.save(tree);
+        assertEquals("root", repository.findById(tree.getId()).getNode().getName());
+
+        dbi.withHandle(new HandleCallback<Object>() {
+            @Override
+            public Object withHandle(Handle handle) throws Exception {
+                handle.execute("DROP TABLE tree");
+                return null;
+            }
+        });
+        try {
+            repository.findById(tree.getId());
+            fail("Expected the query to fail");
+        } catch (RuntimeException e) {
+            // The failure of the operation, not the listener's
+            assertFalse(e instanceof IllegalStateException);
+        }
+        assertEquals(3, reported.size());
+        assertTrue(reported.get(2).isFailed());
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        HistogramReporter.Histogram histogram = new HistogramReporter.Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500, histogram.getMean(), 0.001);
+        assertEquals(500000, histogram.getPercentile(50), 500000 / 8);
+        assertEquals(990000, histogram.getPercentile(99), 990000 / 8);
+        assertEquals(1000000, histogram.getPercentile(100));
+    }
+}
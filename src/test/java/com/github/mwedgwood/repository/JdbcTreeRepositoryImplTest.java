@@ -1,22 +1,34 @@
 package com.github.mwedgwood.repository;
 
+import com.github.mwedgwood.model.tree.CompactTree;
 import com.github.mwedgwood.model.tree.Node;
 import com.github.mwedgwood.model.tree.Tree;
 import com.github.mwedgwood.service.PersistenceServiceImpl;
+import com.github.mwedgwood.util.JsonUtil;
 import org.junit.Before;
 import org.junit.Test;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.exceptions.CallbackFailedException;
 import org.skife.jdbi.v2.tweak.HandleCallback;
 import org.skife.jdbi.v2.util.IntegerMapper;
 
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import static org.junit.Assert.*;
 
 public class JdbcTreeRepositoryImplTest {
 
-    private final DBI dbi = PersistenceServiceImpl.getInstance().getDbi();
-    private Integer rootId;
-    private Integer childOneId;
+    final DBI dbi = PersistenceServiceImpl.getInstance().getDbi();
+    Integer rootId;
+    Integer childOneId;
 
     @Before
     public void setUp() throws Exception {
@@ -43,10 +55,14 @@ public class JdbcTreeRepositoryImplTest {
                 .executeAndReturnGeneratedKeys(IntegerMapper.FIRST).first();
     }
 
+    TreeRepository createRepository() {
+        return new JdbcTreeRepositoryImpl(dbi);
+    }
+
 
     @Test
     public void testFindEntireTree() throws Exception {
-        TreeRepository repository = new JdbcTreeRepositoryImpl(dbi);
+        TreeRepository repository = createRepository();
 
         Tree tree = repository.findEntireTree(rootId);
         System.out.println(tree.prettyPrint());
@@ -64,9 +80,19 @@ public class JdbcTreeRepositoryImplTest {
         assertEquals(1, childTwo.getChildren().size());
     }
 
+    @Test
+    public void testFindCompactTree() throws Exception {
+        Tree tree = createRepository().findEntireTree(rootId);
+        CompactTree compactTree = new JdbcTreeRepositoryImpl(dbi).findCompactTree(rootId);
+
+        assertEquals(5, compactTree.size());
+        assertEquals(JsonUtil.toJson(tree), JsonUtil.toJson(compactTree.toTree()));
+        assertNull(new JdbcTreeRepositoryImpl(dbi).findCompactTree(-1));
+    }
+
     @Test
     public void testFindByIdForDepth() throws Exception {
-        TreeRepository repository = new JdbcTreeRepositoryImpl(dbi);
+        TreeRepository repository = createRepository();
 
         Tree tree = repository.findByIdForDepth(rootId, 2);
         System.out.println(tree.prettyPrint());
@@ -84,9 +110,19 @@ public class JdbcTreeRepositoryImplTest {
         assertEquals(0, childTwo.getChildren().size());
     }
 
+    @Test
+    public void testFindByIdForNullDepth() throws Exception {
+        TreeRepository repository = createRepository();
+        Tree tree = repository.findByIdForDepth(rootId, null);
+
+        assertEquals(JsonUtil.toJson(repository.findEntireTree(rootId)), JsonUtil.toJson(tree));
+        assertEquals("root.child2.child2.1", tree.findTree("child2.1").createPath());
+        assertEquals(2, repository.findByIdsForDepth(Arrays.asList(rootId, childOneId), null).get(childOneId).toList().size());
+    }
+
     @Test
     public void testFindById() throws Exception {
-        TreeRepository repository = new JdbcTreeRepositoryImpl(dbi);
+        TreeRepository repository = createRepository();
 
         Tree tree = repository.findById(childOneId);
         System.out.println(tree.prettyPrint());
@@ -100,7 +136,7 @@ public class JdbcTreeRepositoryImplTest {
     public void testSave() throws Exception {
         Tree newTree = new Tree(new Node().setName("new node").setDescription("description").setParentId(null).setOrder(0));
 
-        TreeRepository jdbcTreeRepository = new JdbcTreeRepositoryImpl(dbi);
+        TreeRepository jdbcTreeRepository = createRepository();
         jdbcTreeRepository.save(newTree);
 
         Tree treeFromDb = jdbcTreeRepository.findById(newTree.getId());
@@ -111,11 +147,51 @@ public class JdbcTreeRepositoryImplTest {
         assertEquals(0, treeFromDb.getNode().getOrder().intValue());
     }
 
+    @Test
+    public void testSaveTree() throws Exception {
+        Tree newTree = new Tree(new Node().setName("new root").setOrder(0));
+        for (int i = 0; i < 3; i++) {
+            Tree child = new Tree(new Node().setName("child" + i).setOrder(i));
+            newTree.addChild(child);
+            for (int j = 0; j < 3; j++) {
+                Tree grandchild = new Tree(new Node().setName("child" + i + "." + j).setOrder(j));
+                child.addChild(grandchild);
+                grandchild.addNode(new Node().setName("child" + i + "." + j + ".0").setOrder(0));
+            }
+        }
+
+        TreeRepository jdbcTreeRepository = createRepository();
+        jdbcTreeRepository.save(newTree);
+
+        List<Tree> saved = newTree.toList();
+        assertEquals(22, saved.size());
+        Set<Integer> ids = new HashSet<>();
+        for (Tree tree : saved) {
+            assertNotNull(tree.getId());
+            assertTrue(ids.add(tree.getId()));
+            if (tree.getParent() != null) {
+                assertEquals(tree.getParent().getId(), tree.getNode().getParentId());
+            }
+        }
+
+        Tree treeFromDb = jdbcTreeRepository.findEntireTree(newTree.getId());
+        assertEquals(22, treeFromDb.toList().size());
+        for (Tree tree : saved) {
+            Tree fromDb = treeFromDb.findById(tree.getId());
+            assertNotNull(fromDb);
+            assertEquals(tree.getNode().getName(), fromDb.getNode().getName());
+            if (tree.getParent() != null) {
+                assertEquals(tree.getParent().getId(), fromDb.getNode().getParentId());
+                assertEquals(tree.getParent().getId(), fromDb.getParent().getId());
+            }
+        }
+    }
+
     @Test
     public void testDelete() throws Exception {
         Tree newTree = new Tree(new Node().setName("new node").setDescription("description").setParentId(null).setOrder(0));
 
-        TreeRepository jdbcTreeRepository = new JdbcTreeRepositoryImpl(dbi);
+        TreeRepository jdbcTreeRepository = createRepository();
         jdbcTreeRepository.save(newTree);
 
         Tree treeFromDb = jdbcTreeRepository.findById(newTree.getId());
@@ -129,7 +205,7 @@ public class JdbcTreeRepositoryImplTest {
     public void testUpdate() throws Exception {
         Tree newTree = new Tree(new Node().setName("new node").setDescription("description").setParentId(null).setOrder(0));
 
-        TreeRepository jdbcTreeRepository = new JdbcTreeRepositoryImpl(dbi);
+        TreeRepository jdbcTreeRepository = createRepository();
         jdbcTreeRepository.save(newTree);
 
         Tree treeFromDb = jdbcTreeRepository.findById(newTree.getId());
@@ -143,6 +219,247 @@ public class JdbcTreeRepositoryImplTest {
         assertEquals(0, treeFromDb.getNode().getOrder().intValue());
     }
 
+    @Test
+    public void testUpdateMovesSubtree() throws Exception {
+        TreeRepository repository = createRepository();
+
+        Tree childTwo = repository.findEntireTree(rootId).getChildren().get(1);
+        childTwo.getNode().setParentId(childOneId).setOrder(1);
+        repository.update(childTwo);
+
+        Tree tree = repository.findEntireTree(rootId);
+        assertEquals(1, tree.getChildren().size());
+        assertEquals(2, tree.getChildren().get(0).getChildren().size());
+        assertEquals("root.child1.child2.child2.1", tree.findTree("child2.1").createPath());
+        assertEquals(1, repository.findByIdForDepth(rootId, 2).getChildren().size());
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        Tree newTree = new Tree(new Node().setName("new root").setOrder(0));
+        newTree.addNode(new Node().setName("new child\twith tab").setDescription("back\\slash").setOrder(0));
+        newTree.addNode(new Node().setName("new child2").setOrder(1));
+
+        TreeRepository jdbcTreeRepository = createRepository();
+        assertEquals(3, jdbcTreeRepository.bulkLoad(newTree));
+
+        Tree treeFromDb = jdbcTreeRepository.findEntireTree(newTree.getId());
+        assertEquals("new root", treeFromDb.getNode().getName());
+        assertEquals(2, treeFromDb.getChildren().size());
+        assertEquals("new child\twith tab", treeFromDb.findById(newTree.getChildren().get(0).getId()).getNode().getName());
+        assertEquals("back\\slash", treeFromDb.findById(newTree.getChildren().get(0).getId()).getNode().getDescription());
+    }
+
+    @Test
+    public void testBulkLoadNodes() throws Exception {
+        List<Node> nodes = Arrays.asList(
+                new Node().setId(-1).setName("imported root").setOrder(0),
+                new Node().setId(-2).setParentId(-1).setName("imported child").setOrder(0),
+                new Node().setId(-3).setParentId(childOneId).setName("attached child").setOrder(1));
+
+        TreeRepository jdbcTreeRepository = createRepository();
+        assertEquals(3, jdbcTreeRepository.bulkLoad(nodes.iterator()));
+
+        Tree imported = jdbcTreeRepository.findEntireTree(nodes.get(0).getId());
+        assertEquals(1, imported.getChildren().size());
+        assertEquals("imported child", imported.getChildren().get(0).getNode().getName());
+        assertEquals(2, jdbcTreeRepository.findEntireTree(childOneId).getChildren().size());
+    }
+
+    @Test
+    public void testMove() throws Exception {
+        TreeRepository repository = createRepository();
+
+        Tree tree = repository.findEntireTree(rootId);
+        Integer childTwoId = tree.findTree("child2").getId();
+        Integer grandChildId = tree.findTree("child2.1").getId();
+
+        // child1 and child2 have adjacent keys, so this renumbers the root's children first
+        repository.move(grandChildId, rootId, 1);
+        tree = repository.findEntireTree(rootId);
+        assertEquals("child1", tree.getChildren().get(0).getNode().getName());
+        assertEquals("child2.1", tree.getChildren().get(1).getNode().getName());
+        assertEquals("child2", tree.getChildren().get(2).getNode().getName());
+
+        repository.move(childTwoId, childOneId, 0);
+        tree = repository.findEntireTree(rootId);
+        assertEquals(2, tree.getChildren().size());
+        assertEquals("root.child1.child2", tree.findTree("child2").createPath());
+        assertEquals("child2", tree.findTree("child1").getChildren().get(0).getNode().getName());
+        assertEquals("child1.1", tree.findTree("child1").getChildren().get(1).getNode().getName());
+
+        repository.move(grandChildId, childOneId, 5);
+        assertEquals("child2.1", repository.findEntireTree(childOneId).getChildren().get(2).getNode().getName());
+    }
+
+    @Test
+    public void testMoveToRoots() throws Exception {
+        TreeRepository repository = createRepository();
+        Integer childTwoId = repository.findEntireTree(rootId).findTree("child2").getId();
+
+        repository.move(childOneId, null, 0);
+        repository.move(childTwoId, null, 1);
+        List<String> names = new ArrayList<>();
+        for (Tree root : repository.findChildren(null).list()) {
+            names.add(root.getNode().getName());
+        }
+        assertEquals(Arrays.asList("child1", "child2", "root"), names);
+        assertEquals("child2.child2.1", repository.findEntireTree(childTwoId).findTree("child2.1").createPath());
+        assertEquals(0, repository.findEntireTree(rootId).getChildren().size());
+
+        // Back among the roots, after the last
+        repository.move(childOneId, null, 5);
+        assertEquals("child1", repository.findChildren(null).list().get(2).getNode().getName());
+    }
+
+    @Test
+    public void testMoveBelowDescendant() throws Exception {
+        try {
+            createRepository().move(rootId, childOneId, 0);
+            fail("Expected the move to be rejected");
+        } catch (CallbackFailedException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        assertEquals(2, createRepository().findEntireTree(rootId).getChildren().size());
+    }
+
+    @Test
+    public void testDeleteSubtree() throws Exception {
+        TreeRepository repository = createRepository();
+
+        Tree tree = repository.findEntireTree(rootId);
+        Integer grandChildId = tree.findTree("child1.1").getId();
+
+        assertEquals(2, repository.deleteSubtree(childOneId));
+        assertNull(repository.findEntireTree(childOneId));
+        assertNull(repository.findEntireTree(grandChildId));
+
+        tree = repository.findEntireTree(rootId);
+        assertEquals(1, tree.getChildren().size());
+        assertEquals("child2", tree.getChildren().get(0).getNode().getName());
+    }
+
+    @Test
+    public void testDeleteSubtreeInChunks() throws Exception {
+        TreeRepository repository = createRepository();
+        repository.findEntireTree(rootId);
+
+        assertEquals(5, repository.deleteSubtree(rootId, 2));
+        assertNull(repository.findEntireTree(rootId));
+        assertNull(repository.findById(childOneId));
+    }
+
+    @Test
+    public void testFindEntireTrees() throws Exception {
+        TreeRepository repository = createRepository();
+
+        Map<Integer, Tree> trees = repository.findEntireTrees(Arrays.asList(childOneId, -1, rootId, childOneId));
+        assertEquals(Arrays.asList(childOneId, rootId), new ArrayList<>(trees.keySet()));
+        assertEquals(JsonUtil.toJson(repository.findEntireTree(rootId)), JsonUtil.toJson(trees.get(rootId)));
+        assertEquals(JsonUtil.toJson(repository.findEntireTree(childOneId)), JsonUtil.toJson(trees.get(childOneId)));
+        assertNotSame(trees.get(rootId).findById(childOneId).getNode(), trees.get(childOneId).getNode());
+
+        trees = repository.findByIdsForDepth(Arrays.asList(rootId, childOneId), 2);
+        assertEquals(JsonUtil.toJson(repository.findByIdForDepth(rootId, 2)), JsonUtil.toJson(trees.get(rootId)));
+        assertEquals(1, trees.get(childOneId).getChildren().size());
+        assertTrue(repository.findEntireTrees(Collections.<Integer>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testFindLazyTree() throws Exception {
+        TreeRepository repository = createRepository();
+
+        Tree tree = repository.findLazyTree(rootId, 1);
+        assertFalse(tree.isLoaded());
+        Tree childOne = tree.getChildren().get(0);
+        Tree childTwo = tree.getChildren().get(1);
+        assertFalse(childTwo.isLoaded());
+
+        // Expanding child1 fetches the children of child2 in the same query
+        assertEquals("child1.1", childOne.getChildren().get(0).getNode().getName());
+        assertTrue(childTwo.isLoaded());
+        assertEquals(JsonUtil.toJson(repository.findEntireTree(rootId)), JsonUtil.toJson(tree));
+
+        assertNull(repository.findLazyTree(-1, 1));
+    }
+
+    @Test
+    public void testFindChildren() throws Exception {
+        TreeRepository repository = createRepository();
+        // Ties and nulls on children_order, so pages break inside runs of equal keys
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            nodes.add(new Node().setName("child" + (3 + i)).setParentId(rootId).setOrder(i % 3 == 0 ? null : i % 2));
+        }
+        repository.bulkLoad(nodes.iterator());
+
+        List<Tree> all = repository.findChildren(rootId).list();
+        assertEquals(12, all.size());
+        assertEquals("child1", all.get(0).getNode().getName());
+        // The nodes without an order come last, by id
+        assertEquals(Arrays.asList("child3", "child6", "child9", "child12"), names(all.subList(8, 12)));
+
+        List<Tree> paged = new ArrayList<>();
+        for (List<Tree> page : repository.findChildren(rootId).limit(1, 5).pages()) {
+            assertTrue(page.size() <= 5);
+            paged.addAll(page);
+        }
+        assertEquals(names(all), names(paged));
+        assertEquals(names(all.subList(5, 10)), names(repository.findChildren(rootId).limit(2, 5).list()));
+        assertEquals(names(all.subList(10, 12)), names(repository.findChildren(rootId).limit(3, 5).list()));
+        assertTrue(repository.findChildren(rootId).limit(4, 5).list().isEmpty());
+
+        Node fifth = all.get(4).getNode();
+        assertEquals(names(all.subList(5, 10)), names(repository.findChildren(rootId).after(fifth.getOrder(), fifth.getId()).limit(1, 5).list()));
+        Node unordered = all.get(9).getNode();
+        assertEquals(names(all.subList(10, 12)), names(repository.findChildren(rootId).after(null, unordered.getId()).list()));
+        assertEquals(names(all.subList(8, 11)), names(repository.findChildren(rootId).after(fifth.getOrder(), fifth.getId()).limit(2, 3).list()));
+
+        List<Tree> descending = new ArrayList<>();
+        for (List<Tree> page : repository.findChildren(rootId).orderBy(Order.desc("order"), Order.desc("id")).limit(1, 4).pages()) {
+            descending.addAll(page);
+        }
+        List<String> reversed = names(all);
+        Collections.reverse(reversed);
+        assertEquals(reversed, names(descending));
+
+        List<Tree> byName = repository.findChildren(rootId).orderBy(Order.asc("name")).limit(2, 3).list();
+        assertEquals(Arrays.asList("child12", "child2", "child3"), names(byName));
+
+        assertEquals(Arrays.asList("root"), names(repository.findChildren(null).list()));
+        assertTrue(repository.findChildren(-1).list().isEmpty());
+    }
+
+    private static List<String> names(List<Tree> trees) {
+        List<String> names = new ArrayList<>();
+        for (Tree tree : trees) {
+            names.add(tree.getNode().getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testExportJson() throws Exception {
+        TreeRepository repository = createRepository();
+        // Gives child1 an elder sibling with a negative key, and child1.1 a younger one
+        repository.move(repository.findEntireTree(rootId).findTree("child2.1").getId(), rootId, 0);
+        repository.bulkLoad(Arrays.asList(new Node().setName("child1.2").setParentId(childOneId).setOrder(5)).iterator());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(6, repository.exportJson(rootId, out, true));
+        assertEquals(JsonUtil.toJson(repository.findEntireTree(rootId)), out.toString("UTF-8"));
+
+        out = new ByteArrayOutputStream();
+        assertEquals(3, repository.exportJson(childOneId, out, false));
+        String compact = out.toString("UTF-8");
+        assertFalse(compact.contains("\n"));
+        assertEquals(JsonUtil.toJson(repository.findEntireTree(childOneId)), JsonUtil.toJson(JsonUtil.fromJson(compact, Object.class)));
+
+        out = new ByteArrayOutputStream();
+        assertEquals(0, repository.exportJson(-1, out, false));
+        assertEquals("null", out.toString("UTF-8"));
+    }
+
     static void reCreateTreeTable(Handle handle) {
         handle.execute("DROP TABLE IF EXISTS tree");
 
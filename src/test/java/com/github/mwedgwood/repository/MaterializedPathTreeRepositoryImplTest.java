@@ -0,0 +1,93 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.exceptions.CallbackFailedException;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.skife.jdbi.v2.util.IntegerMapper;
+import org.skife.jdbi.v2.util.StringMapper;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class MaterializedPathTreeRepositoryImplTest extends JdbcTreeRepositoryImplTest {
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        dbi.withHandle(new HandleCallback<Object>() {
+            @Override
+            public Object withHandle(Handle handle) throws Exception {
+                addPathColumn(handle);
+                return null;
+            }
+        });
+        new MaterializedPathTreeRepositoryImpl(dbi).rebuild();
+    }
+
+    @Override
+    TreeRepository createRepository() {
+        return new MaterializedPathTreeRepositoryImpl(dbi);
+    }
+
+    @Test
+    public void testSaveSetsPaths() throws Exception {
+        Tree newTree = new Tree(new Node().setName("new node").setParentId(childOneId).setOrder(1));
+        newTree.addNode(new Node().setName("new child").setOrder(0));
+
+        TreeRepository repository = createRepository();
+        repository.save(newTree);
+
+        String path = dbi.withHandle(new HandleCallback<String>() {
+            @Override
+            public String withHandle(Handle handle) throws Exception {
+                return handle.createQuery("select path from tree where name = 'new child'").map(StringMapper.FIRST).first();
+            }
+        });
+        assertEquals(MaterializedPathTreeRepositoryImpl.segment(rootId) +
+                MaterializedPathTreeRepositoryImpl.segment(childOneId) +
+                MaterializedPathTreeRepositoryImpl.segment(newTree.getId()) +
+                MaterializedPathTreeRepositoryImpl.segment(newTree.getChildren().get(0).getId()), path);
+        assertEquals(2, repository.findEntireTree(childOneId).getChildren().size());
+    }
+
+    @Test
+    public void testPathlessRows() throws Exception {
+        // Written behind the repository's back, so it has no path
+        final Integer strayId = dbi.withHandle(new HandleCallback<Integer>() {
+            @Override
+            public Integer withHandle(Handle handle) throws Exception {
+                return handle.createStatement("INSERT INTO tree (name, parent_id, children_order) VALUES ('stray', :parentId, 5)")
+                        .bind("parentId", childOneId)
+                        .executeAndReturnGeneratedKeys(IntegerMapper.FIRST)
+                        .first();
+            }
+        });
+
+        // A bulk load only fills in the paths of its own rows
+        TreeRepository repository = createRepository();
+        repository.bulkLoad(Arrays.asList(
+                new Node().setId(-1).setParentId(childOneId).setName("loaded").setOrder(1),
+                new Node().setId(-2).setParentId(-1).setName("loaded child").setOrder(0)).iterator());
+        Tree tree = repository.findEntireTree(rootId);
+        assertEquals("root.child1.loaded.loaded child", tree.findTree("loaded child").createPath());
+        assertNull(tree.findById(strayId));
+
+        try {
+            repository.move(strayId, rootId, 0);
+            fail("Expected the move to be rejected");
+        } catch (CallbackFailedException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    static void addPathColumn(Handle handle) {
+        handle.execute("ALTER TABLE tree ADD COLUMN path character varying");
+        handle.execute("CREATE INDEX tree_path ON tree (path)");
+    }
+}
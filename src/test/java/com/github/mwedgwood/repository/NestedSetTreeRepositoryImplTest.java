@@ -0,0 +1,192 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+import org.skife.jdbi.v2.util.IntegerMapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NestedSetTreeRepositoryImplTest extends JdbcTreeRepositoryImplTest {
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        dbi.withHandle(new HandleCallback<Object>() {
+            @Override
+            public Object withHandle(Handle handle) throws Exception {
+                addNestedSetColumns(handle);
+                return null;
+            }
+        });
+        new NestedSetTreeRepositoryImpl(dbi).rebuild();
+    }
+
+    @Override
+    TreeRepository createRepository() {
+        return new NestedSetTreeRepositoryImpl(dbi);
+    }
+
+    @Test
+    public void testFindLeavesAndCountDescendants() throws Exception {
+        NestedSetTreeRepositoryImpl repository = new NestedSetTreeRepositoryImpl(dbi);
+
+        List<Node> leaves = repository.findLeaves(rootId);
+        assertEquals(2, leaves.size());
+        assertEquals("child1.1", leaves.get(0).getName());
+        assertEquals("child2.1", leaves.get(1).getName());
+
+        assertEquals(4, repository.countDescendants(rootId));
+        assertEquals(1, repository.countDescendants(childOneId));
+    }
+
+    @Test
+    public void testSaveShiftsIntervals() throws Exception {
+        Tree newTree = new Tree(new Node().setName("new node").setParentId(childOneId).setOrder(1));
+        newTree.addNode(new Node().setName("new child").setOrder(0));
+
+        NestedSetTreeRepositoryImpl repository = new NestedSetTreeRepositoryImpl(dbi);
+        repository.save(newTree);
+
+        assertEquals(6, repository.countDescendants(rootId));
+        assertEquals(3, repository.countDescendants(childOneId));
+        assertEquals("root.child1.new node.new child", repository.findEntireTree(rootId).findTree("new child").createPath());
+        assertEquals("child2.1", repository.findEntireTree(rootId).findTree("child2.1").getNode().getName());
+    }
+
+    @Test
+    public void testFindLeavesAfterDelete() throws Exception {
+        NestedSetTreeRepositoryImpl repository = new NestedSetTreeRepositoryImpl(dbi);
+        repository.deleteSubtree(repository.findEntireTree(rootId).findTree("child1.1").getId());
+
+        // The gap left by the delete doesn't hide child1, which is a leaf now
+        List<Node> leaves = repository.findLeaves(rootId);
+        assertEquals(2, leaves.size());
+        assertEquals("child1", leaves.get(0).getName());
+        assertEquals("child2.1", leaves.get(1).getName());
+    }
+
+    @Test
+    public void testMovesRenumberOnlyTheirTrees() throws Exception {
+        final NestedSetTreeRepositoryImpl repository = new NestedSetTreeRepositoryImpl(dbi);
+        Tree other = new Tree(new Node().setName("other").setOrder(1));
+        other.addNode(new Node().setName("other.1").setOrder(0));
+        repository.save(other);
+        final Integer otherId = other.getId();
+
+        // Numbering the other tree far off, where a rebuild of the whole table wouldn't leave it
+        dbi.withHandle(new HandleCallback<Object>() {
+            @Override
+            public Object withHandle(Handle handle) throws Exception {
+                handle.execute("update tree set lft = lft + 100, rgt = rgt + 100 where id in (?, ?)", otherId,
+                        repository.findEntireTree(otherId).getChildren().get(0).getId());
+                return null;
+            }
+        });
+        Integer childTwoId = repository.findEntireTree(rootId).findTree("child2").getId();
+        repository.move(childTwoId, childOneId, 0);
+        assertEquals(Integer.valueOf(111), lft(otherId));
+        assertEquals(3, repository.countDescendants(childOneId));
+        assertEquals("root.child1.child2.child2.1", repository.findEntireTree(rootId).findTree("child2.1").createPath());
+
+        // Into the other tree, which grows past the end, and out again as a root of its own
+        repository.move(childTwoId, otherId, 1);
+        assertEquals(1, repository.countDescendants(childOneId));
+        assertEquals(3, repository.countDescendants(otherId));
+        assertEquals(Arrays.asList("other.1", "child2.1"), names(repository.findLeaves(otherId)));
+
+        repository.move(childTwoId, null, 0);
+        assertEquals(1, repository.countDescendants(otherId));
+        assertEquals(1, repository.countDescendants(childTwoId));
+        assertEquals(Arrays.asList("child2.1"), names(repository.findLeaves(childTwoId)));
+        assertEquals(Arrays.asList("child1.1"), names(repository.findLeaves(rootId)));
+    }
+
+    @Test
+    public void testBulkLoadNumbersLoadedTrees() throws Exception {
+        NestedSetTreeRepositoryImpl repository = new NestedSetTreeRepositoryImpl(dbi);
+        repository.bulkLoad(Arrays.asList(
+                new Node().setName("child1.2").setParentId(childOneId).setOrder(1),
+                new Node().setName("child1.3").setParentId(childOneId).setOrder(2)).iterator());
+        assertEquals(3, repository.countDescendants(childOneId));
+        assertEquals(Arrays.asList("child1.1", "child1.2", "child1.3", "child2.1"), names(repository.findLeaves(rootId)));
+
+        Tree loaded = new Tree(new Node().setName("loaded").setOrder(0));
+        loaded.addNode(new Node().setName("loaded.1").setOrder(0));
+        repository.bulkLoad(loaded);
+        assertEquals(1, repository.countDescendants(loaded.getId()));
+        assertEquals(6, repository.countDescendants(rootId));
+    }
+
+    private Integer lft(final Integer id) {
+        return dbi.withHandle(new HandleCallback<Integer>() {
+            @Override
+            public Integer withHandle(Handle handle) throws Exception {
+                return handle.createQuery("select lft from tree where id = :id").bind("id", id).map(IntegerMapper.FIRST).first();
+            }
+        });
+    }
+
+    private static List<String> names(List<Node> nodes) {
+        List<String> names = new ArrayList<>();
+        for (Node node : nodes) {
+            names.add(node.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testReorderRenumbersParent() throws Exception {
+        NestedSetTreeRepositoryImpl repository = new NestedSetTreeRepositoryImpl(dbi);
+        Integer childTwoId = repository.findEntireTree(rootId).findTree("child2").getNode().getId();
+
+        repository.move(childTwoId, rootId, 0);
+        List<Node> leaves = repository.findLeaves(rootId);
+        assertEquals("child2.1", leaves.get(0).getName());
+        assertEquals("child1.1", leaves.get(1).getName());
+
+        // An update changing only the order
+        Tree childTwo = repository.findEntireTree(rootId).findTree("child2");
+        childTwo.getNode().setOrder(2);
+        repository.update(childTwo);
+        leaves = repository.findLeaves(rootId);
+        assertEquals("child1.1", leaves.get(0).getName());
+        assertEquals("child2.1", leaves.get(1).getName());
+        assertEquals(4, repository.countDescendants(rootId));
+        assertEquals(1, repository.countDescendants(childTwoId));
+    }
+
+    @Test
+    public void testRebuildPutsNullOrdersLast() throws Exception {
+        dbi.withHandle(new HandleCallback<Object>() {
+            @Override
+            public Object withHandle(Handle handle) throws Exception {
+                handle.execute("insert into tree (name, parent_id, children_order) values ('unordered', ?, null)", rootId);
+                return null;
+            }
+        });
+        NestedSetTreeRepositoryImpl repository = new NestedSetTreeRepositoryImpl(dbi);
+        repository.rebuild();
+
+        List<Node> leaves = repository.findLeaves(rootId);
+        assertEquals(3, leaves.size());
+        assertEquals("child1.1", leaves.get(0).getName());
+        assertEquals("child2.1", leaves.get(1).getName());
+        assertEquals("unordered", leaves.get(2).getName());
+    }
+
+    static void addNestedSetColumns(Handle handle) {
+        handle.execute("ALTER TABLE tree ADD COLUMN lft integer");
+        handle.execute("ALTER TABLE tree ADD COLUMN rgt integer");
+        handle.execute("ALTER TABLE tree ADD COLUMN depth integer");
+        handle.execute("CREATE INDEX tree_nested_set ON tree (lft, rgt)");
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.mwedgwood.repository;
+
+import com.github.mwedgwood.model.tree.Node;
+import com.github.mwedgwood.model.tree.Tree;
+import com.github.mwedgwood.service.PersistenceServiceImpl;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.tweak.HandleCallback;
+
+import static org.junit.Assert.*;
+
+public class TreeSessionTest {
+
+    final DBI dbi = PersistenceServiceImpl.getInstance().getDbi();
+    Integer rootId;
+
+    @Before
+    public void setUp() throws Exception {
+        dbi.withHandle(new HandleCallback<Object>() {
+            @Override
+            public Object withHandle(Handle handle) throws Exception {
+                JdbcTreeRepositoryImplTest.reCreateTreeTable(handle);
+                return null;
+            }
+        });
+
+        Tree tree = new Tree(new Node().setName("root").setOrder(0));
+        tree.addNode(new Node().setName("child1").setOrder(0));
+        tree.addNode(new Node().setName("child2").setOrder(1));
+        tree.getChildren().get(1).addNode(new Node().setName("child2.1").setOrder(0));
+        new JdbcTreeRepositoryImpl(dbi).save(tree);
+        rootId = tree.getId();
+    }
+
+    @Test
+    public void testFlushWritesOnlyChangedNodes() throws Exception {
+        JdbcTreeRepositoryImpl repository = new JdbcTreeRepositoryImpl(dbi);
+        TreeSession session = repository.openSession();
+
+        Tree tree = session.findEntireTree(rootId);
+        assertFalse(session.isDirty());
+        assertEquals(0, session.flush());
+
+        tree.findTree("child1").getNode().setDescription("changed");
+        assertTrue(session.isDirty());
+        assertEquals(1, session.flush());
+        assertFalse(session.isDirty());
+
+        assertEquals("changed", repository.findEntireTree(rootId).findTree("child1").getNode().getDescription());
+        assertEquals("child2", repository.findEntireTree(rootId).getChildren().get(1).getNode().getName());
+    }
+
+    @Test
+    public void testFlushWritesMovedNodes() throws Exception {
+        JdbcTreeRepositoryImpl repository = new JdbcTreeRepositoryImpl(dbi);
+        TreeSession session = repository.openSession();
+
+        Tree tree = session.findEntireTree(rootId);
+        tree.findTree("child2.1").move(tree.findTree("child1"), 0);
+        tree.findTree("child2").move(tree.findTree("child1"), 0);
+
+        // child2.1 and child2 changed parent and order, child1 is unchanged
+        assertEquals(2, session.flush());
+
+        Tree treeFromDb = repository.findEntireTree(rootId);
+        assertEquals(1, treeFromDb.getChildren().size());
+        assertEquals("root.child1.child2", treeFromDb.findTree("child2").createPath());
+        assertEquals("root.child1.child2.1", treeFromDb.findTree("child2.1").createPath());
+        assertEquals(0, treeFromDb.findTree("child2").getNode().getOrder().intValue());
+        assertEquals(1, treeFromDb.findTree("child2.1").getNode().getOrder().intValue());
+    }
+
+    @Test
+    public void testClearForgetsChanges() throws Exception {
+        TreeSession session = new JdbcTreeRepositoryImpl(dbi).openSession();
+
+        session.findEntireTree(rootId).getNode().setName("changed");
+        session.clear();
+
+        assertFalse(session.isDirty());
+        assertEquals(0, session.flush());
+    }
+}